@@ -0,0 +1,160 @@
+package io.misterfix.mojangpipe;
+
+import io.lettuce.core.RedisClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+//What a route handler does for a request the cache can answer: MojangPipe.serve from the lookup to the response
+//headers and body, without Spark and Jetty around it.
+//"local" answers from the LocalCache, the others have it turned off so every request goes to the backend:
+//"redis" is the original layout, "unified" the unified keyspace with binary values, both on a LocalRedis,
+//and "embedded" is the MappedStore.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class CacheHitBenchmark {
+	private static final String INVALID = "00000000000000000000000000000000";
+	private static final Supplier<CompletableFuture<Result>> MISS = () -> {
+		throw new IllegalStateException("Cache miss, the API would have been asked");
+	};
+	@Param({"local", "redis", "unified", "embedded"})
+	public String backend;
+	private LocalRedis localRedis;
+	private RedisClient client;
+	private Path directory;
+	
+	@Setup
+	public void setup() throws IOException {
+		MojangPipe.setLifetimes(30, 0, 240);
+		LocalCache.init(backend.equals("local") ? 50000 : 0, 64 * 1024 * 1024);
+		if (backend.equals("embedded")) {
+			directory = Files.createTempDirectory("mojangpipe-benchmark");
+			Cache.init(new MappedStore(directory, 64 * 1024 * 1024, ValueCodec.forName("binary")));
+		} else {
+			boolean unified = backend.equals("unified");
+			ValueCodec codec = unified ? ValueCodec.forName("binary") : null;
+			localRedis = new LocalRedis();
+			client = RedisClient.create();
+			//One connection, so the writes below have landed by the time anything is read back.
+			WrappedRedis.init(client, localRedis.getUri(), 1, false, codec != null);
+			Cache.init(new Redis(unified, codec));
+		}
+		String profile = Fixtures.profile();
+		long now = System.currentTimeMillis();
+		Cache.putJson(Fixtures.UUID, now, profile, 1);
+		Cache.putIndexes(Fixtures.UUID, now, profile, 1);
+		Cache.handleStatusCode(204, INVALID);
+		if (!Cache.getJson(Fixtures.UUID, 1).equals(profile)) {
+			throw new IllegalStateException("The profile didn't make it into the cache");
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		if (client != null) {
+			client.shutdown();
+			localRedis.close();
+		}
+		if (directory != null) {
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+	}
+	
+	@Benchmark
+	public String profile(Exchange exchange) {
+		return MojangPipe.serve(exchange.request, exchange.response, Fixtures.UUID, 1, false, "profile", MISS).join();
+	}
+	
+	@Benchmark
+	public String textures(Exchange exchange) {
+		return MojangPipe.serve(exchange.request, exchange.response, Fixtures.UUID, 1, true, "profile", MISS).join();
+	}
+	
+	//Name -> UUID -> profile, two lookups.
+	@Benchmark
+	public String nameProfile(Exchange exchange) {
+		return MojangPipe.serve(exchange.request, exchange.response, "notch", 4, false, "name_profile", MISS).join();
+	}
+	
+	@Benchmark
+	public String notModified(Exchange exchange) {
+		return MojangPipe.serve(exchange.conditionalRequest, exchange.response, Fixtures.UUID, 1, false, "profile", MISS).join();
+	}
+	
+	@Benchmark
+	public String invalid(Exchange exchange) {
+		return MojangPipe.serve(exchange.request, exchange.response, INVALID, 1, false, "profile", MISS).join();
+	}
+	
+	@State(Scope.Thread)
+	public static class Exchange {
+		private final StubRequest request = new StubRequest(Map.of("Accept-Encoding", "gzip"));
+		private StubRequest conditionalRequest;
+		private final StubResponse response = new StubResponse();
+		
+		@Setup
+		public void setup() {
+			String tag = HttpCaching.tag(Fixtures.profile());
+			conditionalRequest = new StubRequest(Map.of("Accept-Encoding", "gzip", "If-None-Match", "\"" + tag + "--gzip\""));
+		}
+	}
+	
+	private static class StubRequest extends spark.Request {
+		private final Map<String, String> headers;
+		
+		StubRequest(Map<String, String> headers) {
+			this.headers = headers;
+		}
+		
+		@Override
+		public String headers(String header) {
+			return headers.get(header);
+		}
+	}
+	
+	//Keeps the status, headers are thrown away like they would be once they're written out.
+	private static class StubResponse extends spark.Response {
+		private int status = 200;
+		
+		@Override
+		public void status(int statusCode) {
+			status = statusCode;
+		}
+		
+		@Override
+		public int status() {
+			return status;
+		}
+		
+		@Override
+		public void header(String header, String value) {
+		}
+	}
+}
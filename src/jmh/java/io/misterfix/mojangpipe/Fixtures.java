@@ -0,0 +1,19 @@
+package io.misterfix.mojangpipe;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+//Responses the benchmarks work with, shaped like Mojang's.
+class Fixtures {
+	static final String UUID = "069a79f444e94726a5befca90e38aaf5";
+	static final String NAME = "Notch";
+	
+	//A profile with a skin and a cape, as the session server sends it.
+	static String profile() {
+		String textures = "{\"timestamp\":1571580254063,\"profileId\":\"" + UUID + "\",\"profileName\":\"" + NAME + "\"," +
+				"\"textures\":{\"SKIN\":{\"url\":\"http://textures.minecraft.net/texture/292009a4925b58f02c77dadc3ecef07ea4c7472f64e0fdc32ce5522489362680\"}," +
+				"\"CAPE\":{\"url\":\"http://textures.minecraft.net/texture/953cac8b779fe41383e675ee2b86071a71658f2180f56fbce8aa315ea70e2ed6\"}}}";
+		return "{\"id\":\"" + UUID + "\",\"name\":\"" + NAME + "\",\"properties\":[{\"name\":\"textures\",\"value\":\"" +
+				Base64.getEncoder().encodeToString(textures.getBytes(StandardCharsets.UTF_8)) + "\"}]}";
+	}
+}
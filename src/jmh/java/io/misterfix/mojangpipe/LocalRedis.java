@@ -0,0 +1,451 @@
+package io.misterfix.mojangpipe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+//In-process stand-in for a Redis server, so the benchmarks measure MojangPipe's side of a round trip (Lettuce,
+//encoding, the loopback socket) without depending on a server being around or on its version and configuration.
+//Speaks RESP over a loopback port and only knows the commands MojangPipe sends; the Lua lookup script is recognised
+//and run in Java. Everything runs under one lock, like Redis runs everything on one thread.
+class LocalRedis implements AutoCloseable {
+	private static final Object NIL = new Object();
+	private final ServerSocket server;
+	@SuppressWarnings("unchecked")
+	private final Map<String, Value>[] databases = (Map<String, Value>[]) new Map<?, ?>[16];
+	private final Set<String> lookupScripts = new HashSet<>();
+	private final List<Socket> clients = new ArrayList<>();
+	
+	LocalRedis() {
+		for (int i = 0; i < databases.length; i++) {
+			databases[i] = new HashMap<>();
+		}
+		try {
+			server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't start the local Redis", e);
+		}
+		Thread acceptor = new Thread(this::accept, "local-redis");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	//Lettuce URI without a database, like the one MojangPipe builds from its options.
+	String getUri() {
+		return "redis://password@127.0.0.1:" + server.getLocalPort();
+	}
+	
+	@Override
+	public void close() {
+		try {
+			server.close();
+			synchronized (clients) {
+				for (Socket client : clients) {
+					client.close();
+				}
+			}
+		} catch (IOException ignored) {
+		}
+	}
+	
+	private void accept() {
+		while (!server.isClosed()) {
+			try {
+				Socket client = server.accept();
+				client.setTcpNoDelay(true);
+				synchronized (clients) {
+					clients.add(client);
+				}
+				Thread connection = new Thread(() -> serve(client), "local-redis-client");
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+	
+	//Replies are flushed once every pipelined command that has arrived has been answered.
+	private void serve(Socket client) {
+		try (Socket socket = client) {
+			InputStream in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+			int[] db = {0};
+			while (true) {
+				List<byte[]> command = readCommand(in);
+				if (command == null) {
+					return;
+				}
+				Object reply;
+				synchronized (this) {
+					try {
+						reply = execute(db, command);
+					} catch (RedisError e) {
+						reply = e;
+					}
+				}
+				writeReply(out, reply);
+				if (in.available() == 0) {
+					out.flush();
+				}
+			}
+		} catch (IOException ignored) {
+		}
+	}
+	
+	private Object execute(int[] selected, List<byte[]> args) throws RedisError {
+		String name = string(args.get(0)).toUpperCase();
+		Map<String, Value> db = databases[selected[0]];
+		long now = System.currentTimeMillis();
+		switch (name) {
+			case "AUTH":
+			case "CLIENT":
+				return "OK";
+			case "PING":
+				return "PONG";
+			case "SELECT":
+				selected[0] = Integer.parseInt(string(args.get(1)));
+				return "OK";
+			case "FLUSHDB":
+				db.clear();
+				return "OK";
+			case "DBSIZE":
+				db.values().removeIf(value -> value.isExpired(now));
+				return (long) db.size();
+			case "GET":
+				return bytes(db, string(args.get(1)), now);
+			case "MGET": {
+				List<Object> values = new ArrayList<>(args.size() - 1);
+				for (int i = 1; i < args.size(); i++) {
+					Value value = live(db, string(args.get(i)), now);
+					values.add(value == null || value.bytes == null ? NIL : value.bytes);
+				}
+				return values;
+			}
+			case "SET": {
+				String key = string(args.get(1));
+				long expires = 0;
+				for (int i = 3; i < args.size(); i++) {
+					String option = string(args.get(i)).toUpperCase();
+					if (option.equals("NX") && live(db, key, now) != null) {
+						return NIL;
+					} else if (option.equals("EX")) {
+						expires = now + Long.parseLong(string(args.get(++i))) * 1000;
+					} else if (option.equals("PX")) {
+						expires = now + Long.parseLong(string(args.get(++i)));
+					}
+				}
+				db.put(key, new Value(args.get(2), null, expires));
+				return "OK";
+			}
+			case "DEL": {
+				long removed = 0;
+				for (int i = 1; i < args.size(); i++) {
+					if (live(db, string(args.get(i)), now) != null) {
+						db.remove(string(args.get(i)));
+						removed++;
+					}
+				}
+				return removed;
+			}
+			case "HSET":
+			case "HMSET": {
+				Map<String, byte[]> hash = hash(db, string(args.get(1)), now, true);
+				for (int i = 2; i + 1 < args.size(); i += 2) {
+					hash.put(string(args.get(i)), args.get(i + 1));
+				}
+				return name.equals("HMSET") ? "OK" : (Object) (long) ((args.size() - 2) / 2);
+			}
+			case "HMGET": {
+				Map<String, byte[]> hash = hash(db, string(args.get(1)), now, false);
+				List<Object> values = new ArrayList<>(args.size() - 2);
+				for (int i = 2; i < args.size(); i++) {
+					byte[] value = hash == null ? null : hash.get(string(args.get(i)));
+					values.add(value == null ? NIL : value);
+				}
+				return values;
+			}
+			case "HGETALL": {
+				Map<String, byte[]> hash = hash(db, string(args.get(1)), now, false);
+				List<Object> values = new ArrayList<>();
+				if (hash != null) {
+					hash.forEach((field, value) -> {
+						values.add(field.getBytes(StandardCharsets.ISO_8859_1));
+						values.add(value);
+					});
+				}
+				return values;
+			}
+			case "HINCRBY": {
+				Map<String, byte[]> hash = hash(db, string(args.get(1)), now, true);
+				String field = string(args.get(2));
+				byte[] current = hash.get(field);
+				long value = (current == null ? 0 : Long.parseLong(string(current))) + Long.parseLong(string(args.get(3)));
+				hash.put(field, Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+				return value;
+			}
+			case "EXPIRE":
+			case "PEXPIRE": {
+				Value value = live(db, string(args.get(1)), now);
+				if (value == null) {
+					return 0L;
+				}
+				value.expires = now + Long.parseLong(string(args.get(2))) * (name.equals("EXPIRE") ? 1000 : 1);
+				return 1L;
+			}
+			case "PTTL":
+				return pttl(db, string(args.get(1)), now);
+			case "SCAN": {
+				Pattern pattern = null;
+				for (int i = 2; i + 1 < args.size(); i += 2) {
+					if (string(args.get(i)).equalsIgnoreCase("MATCH")) {
+						pattern = glob(string(args.get(i + 1)));
+					}
+				}
+				List<Object> keys = new ArrayList<>();
+				for (Map.Entry<String, Value> entry : db.entrySet()) {
+					if (!entry.getValue().isExpired(now) && (pattern == null || pattern.matcher(entry.getKey()).matches())) {
+						keys.add(entry.getKey().getBytes(StandardCharsets.ISO_8859_1));
+					}
+				}
+				return List.of("0".getBytes(StandardCharsets.US_ASCII), keys);
+			}
+			case "SCRIPT": {
+				String script = string(args.get(2));
+				String sha = sha1(script);
+				if (isLookupScript(script)) {
+					lookupScripts.add(sha);
+				}
+				return sha.getBytes(StandardCharsets.US_ASCII);
+			}
+			case "EVAL":
+			case "EVALSHA": {
+				boolean lookup = name.equals("EVAL") ? isLookupScript(string(args.get(1))) : lookupScripts.contains(string(args.get(1)));
+				if (!lookup) {
+					throw new RedisError(name.equals("EVAL") ? "ERR unsupported script" : "NOSCRIPT No matching script. Please use EVAL.");
+				}
+				int keyCount = Integer.parseInt(string(args.get(2)));
+				List<String> keys = new ArrayList<>(keyCount);
+				for (int i = 0; i < keyCount; i++) {
+					keys.add(string(args.get(3 + i)));
+				}
+				return lookup(db, keys, now);
+			}
+			default:
+				throw new RedisError("ERR unknown command '" + name + "'");
+		}
+	}
+	
+	//Redis.LOOKUP_SCRIPT: the invalid entry's TTL if there's one, otherwise the data entry (and its textures) with its TTL.
+	private static boolean isLookupScript(String script) {
+		return script.contains("redis.call('pttl', KEYS[1])");
+	}
+	
+	private Object lookup(Map<String, Value> db, List<String> keys, long now) throws RedisError {
+		long invalid = pttl(db, keys.get(0), now);
+		if (invalid > 0) {
+			return List.of(0L, invalid);
+		}
+		Object json = bytes(db, keys.get(1), now);
+		if (json == NIL) {
+			return List.of(2L);
+		}
+		List<Object> reply = new ArrayList<>(List.of(1L, pttl(db, keys.get(1), now), json));
+		if (keys.size() > 2) {
+			Object textures = bytes(db, keys.get(2), now);
+			//Lua's false comes back as a nil reply.
+			reply.add(textures);
+		}
+		return reply;
+	}
+	
+	private static Value live(Map<String, Value> db, String key, long now) {
+		Value value = db.get(key);
+		if (value != null && value.isExpired(now)) {
+			db.remove(key);
+			return null;
+		}
+		return value;
+	}
+	
+	private static Object bytes(Map<String, Value> db, String key, long now) throws RedisError {
+		Value value = live(db, key, now);
+		if (value == null) {
+			return NIL;
+		}
+		if (value.bytes == null) {
+			throw new RedisError("WRONGTYPE Operation against a key holding the wrong kind of value");
+		}
+		return value.bytes;
+	}
+	
+	private static Map<String, byte[]> hash(Map<String, Value> db, String key, long now, boolean create) throws RedisError {
+		Value value = live(db, key, now);
+		if (value == null) {
+			if (!create) {
+				return null;
+			}
+			value = new Value(null, new LinkedHashMap<>(), 0);
+			db.put(key, value);
+		}
+		if (value.hash == null) {
+			throw new RedisError("WRONGTYPE Operation against a key holding the wrong kind of value");
+		}
+		return value.hash;
+	}
+	
+	private static long pttl(Map<String, Value> db, String key, long now) {
+		Value value = live(db, key, now);
+		if (value == null) {
+			return -2;
+		}
+		return value.expires == 0 ? -1 : value.expires - now;
+	}
+	
+	private static Pattern glob(String glob) {
+		StringBuilder regex = new StringBuilder();
+		for (char c : glob.toCharArray()) {
+			if (c == '*') {
+				regex.append(".*");
+			} else if (c == '?') {
+				regex.append('.');
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+	
+	//Keys and arguments are kept as ISO-8859-1 strings, which map every byte to one char and back.
+	private static String string(byte[] bytes) {
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+	
+	private static String sha1(String script) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.ISO_8859_1));
+			StringBuilder hex = new StringBuilder(40);
+			for (byte b : hash) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	//=========================PROTOCOL=========================//
+	private static List<byte[]> readCommand(InputStream in) throws IOException {
+		int type = in.read();
+		if (type == -1) {
+			return null;
+		}
+		if (type != '*') {
+			throw new IOException("Only multi-bulk commands are supported");
+		}
+		int count = (int) readNumber(in);
+		List<byte[]> args = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			if (in.read() != '$') {
+				throw new IOException("Expected a bulk string");
+			}
+			byte[] arg = new byte[(int) readNumber(in)];
+			int read = 0;
+			while (read < arg.length) {
+				int n = in.read(arg, read, arg.length - read);
+				if (n == -1) {
+					return null;
+				}
+				read += n;
+			}
+			in.read();
+			in.read();
+			args.add(arg);
+		}
+		return args;
+	}
+	
+	private static long readNumber(InputStream in) throws IOException {
+		long value = 0;
+		boolean negative = false;
+		int c;
+		while ((c = in.read()) != '\r') {
+			if (c == -1) {
+				throw new IOException("Connection closed");
+			}
+			if (c == '-') {
+				negative = true;
+			} else {
+				value = value * 10 + (c - '0');
+			}
+		}
+		in.read();
+		return negative ? -value : value;
+	}
+	
+	private static void writeReply(OutputStream out, Object reply) throws IOException {
+		if (reply == NIL) {
+			out.write("$-1\r\n".getBytes(StandardCharsets.US_ASCII));
+		} else if (reply instanceof RedisError) {
+			out.write(('-' + ((RedisError) reply).getMessage() + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		} else if (reply instanceof String) {
+			out.write(('+' + (String) reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		} else if (reply instanceof Long) {
+			out.write((":" + reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		} else if (reply instanceof byte[]) {
+			byte[] bytes = (byte[]) reply;
+			out.write(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+			out.write(bytes);
+			out.write('\r');
+			out.write('\n');
+		} else if (reply instanceof List) {
+			List<?> list = (List<?>) reply;
+			out.write(("*" + list.size() + "\r\n").getBytes(StandardCharsets.US_ASCII));
+			for (Object element : list) {
+				writeReply(out, element);
+			}
+		} else {
+			throw new IllegalArgumentException("Can't reply with " + reply);
+		}
+	}
+	
+	private static class Value {
+		private final byte[] bytes;
+		private final Map<String, byte[]> hash;
+		//0 for keys without a TTL.
+		private long expires;
+		
+		Value(byte[] bytes, Map<String, byte[]> hash, long expires) {
+			this.bytes = bytes;
+			this.hash = hash;
+			this.expires = expires;
+		}
+		
+		boolean isExpired(long now) {
+			return expires != 0 && expires <= now;
+		}
+	}
+	
+	private static class RedisError extends Exception {
+		private static final long serialVersionUID = 1L;
+		
+		RedisError(String message) {
+			super(message, null, false, false);
+		}
+	}
+}
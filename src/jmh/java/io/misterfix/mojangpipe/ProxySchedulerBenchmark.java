@@ -0,0 +1,53 @@
+package io.misterfix.mojangpipe;
+
+import okhttp3.OkHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//Picking a proxy port for an upstream call and recording how it went, from many threads at once.
+//With Mojang's 600 requests per 10 minutes the buckets are empty after the first few thousand calls and every pick
+//comes back empty, which is what it looks like under heavy load. The other limit never runs out.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+public class ProxySchedulerBenchmark {
+	@Param({"600", "1000000000"})
+	public int requestsPerTenMinutes;
+	
+	@Setup
+	public void setup() {
+		ProxyScheduler.init(new OkHttpClient(), List.of(3129, 3130, 3131, 3132, 3133, 3134, 3135, 3136), requestsPerTenMinutes, 60, 1000);
+	}
+	
+	@Benchmark
+	public ProxyScheduler.Egress acquireAndRecord() {
+		ProxyScheduler.Egress egress = ProxyScheduler.acquire();
+		if (egress != null) {
+			egress.record(200, 50_000_000L);
+		}
+		return egress;
+	}
+	
+	//The retry path, which skips the port that just failed.
+	@Benchmark
+	public ProxyScheduler.Egress acquireExcluding() {
+		return ProxyScheduler.acquire(ProxyScheduler.getEgresses()[0]);
+	}
+}
@@ -0,0 +1,63 @@
+package io.misterfix.mojangpipe;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+//Per-hit cost of /textures: deriving it from the profile on every hit with org.json (how it used to be done),
+//deriving it once with the streaming parser, and serving the stored representation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TexturesBenchmark {
+	private String profile;
+	private LocalCache.Entry entry;
+	
+	@Setup
+	public void setup() {
+		profile = Fixtures.profile();
+		entry = new LocalCache.Entry(System.currentTimeMillis(), Long.MAX_VALUE, profile, ProfileJson.toTextures(profile));
+	}
+	
+	@Benchmark
+	public byte[] orgJsonPerHit() {
+		JSONObject responseJson = new JSONObject();
+		JSONObject profileJson = new JSONObject(profile);
+		String data = profileJson.getJSONArray("properties").getJSONObject(0).getString("value");
+		JSONObject textures = new JSONObject(new String(Base64.getDecoder().decode(data))).getJSONObject("textures");
+		responseJson.put("uuid", profileJson.getString("id"));
+		responseJson.put("name", profileJson.getString("name"));
+		if (!textures.isNull("SKIN")) {
+			responseJson.put("skin", textures.getJSONObject("SKIN").getString("url"));
+		}
+		if (!textures.isNull("CAPE")) {
+			responseJson.put("cape", textures.getJSONObject("CAPE").getString("url"));
+		}
+		return responseJson.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public String streamingOnWrite() {
+		return ProfileJson.toTextures(profile);
+	}
+	
+	@Benchmark
+	public byte[] storedPerHit() {
+		return entry.getTextures().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,94 @@
+package io.misterfix.mojangpipe;
+
+import io.lettuce.core.RedisClient;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//Getting a client and a call ready for an upstream request, up to the point it would be sent.
+//perRequestClient is what Utils.getClient used to do for every request: pick the proxy least recently used according to
+//a Redis hash (on a LocalRedis here), then build a whole new client for it, with its own connection pool and TLS setup.
+//sharedClient is the ProxyScheduler picking one of the clients built at startup.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpstreamClientBenchmark {
+	private static final List<Integer> PORTS = List.of(3129, 3130, 3131, 3132, 3133, 3134, 3135, 3136);
+	private final Request request = new Request.Builder().url("https://sessionserver.mojang.com/session/minecraft/profile/" + Fixtures.UUID).build();
+	private LocalRedis localRedis;
+	private RedisClient client;
+	
+	@Setup
+	public void setup() {
+		localRedis = new LocalRedis();
+		client = RedisClient.create();
+		WrappedRedis.init(client, localRedis.getUri(), 1, false);
+		Map<String, String> proxies = new HashMap<>();
+		for (int port : PORTS) {
+			proxies.put(Integer.toString(port), "0");
+		}
+		try (WrappedRedis redis = WrappedRedis.get(0)) {
+			redis.get().hmset("proxies", proxies);
+		}
+		ProxyScheduler.init(new OkHttpClient(), PORTS, 1000000000, 60, 1000);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		client.shutdown();
+		localRedis.close();
+	}
+	
+	@Benchmark
+	public Call perRequestClient() {
+		String proxy;
+		try (WrappedRedis redis = WrappedRedis.get(0)) {
+			Map<String, String> proxies = redis.get().hgetall("proxies");
+			proxy = leastRecentlyUsed(proxies);
+			redis.get().hmset("proxies", Map.of(proxy, Long.toString(System.currentTimeMillis())));
+		}
+		OkHttpClient client = new OkHttpClient.Builder()
+				.proxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", Integer.parseInt(proxy))))
+				.build();
+		return client.newCall(request);
+	}
+	
+	@Benchmark
+	public Call sharedClient() {
+		return ProxyScheduler.acquire().getClient().newCall(request);
+	}
+	
+	private static String leastRecentlyUsed(Map<String, String> proxies) {
+		String least = "0";
+		long leastTime = Long.MAX_VALUE;
+		for (Map.Entry<String, String> entry : proxies.entrySet()) {
+			long time = Long.parseLong(entry.getValue());
+			if (time < leastTime) {
+				leastTime = time;
+				least = entry.getKey();
+			}
+		}
+		return least;
+	}
+}
@@ -0,0 +1,84 @@
+package io.misterfix.mojangpipe;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+//Encoding and decoding a profile entry with each --valueCodec. "json" is the original hash layout: three fields
+//with the time as decimal text, encoded and decoded as Lettuce's string codec does it.
+//Bytes per entry (the value bytes Redis stores, without its own per-key and per-field overhead) are printed in setup.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValueCodecBenchmark {
+	@Param({"json", "binary", "deflate"})
+	private String codecName;
+	private ValueCodec codec;
+	private long time;
+	private String profile;
+	private String textures;
+	private String profileTag;
+	private String texturesTag;
+	private byte[] encoded;
+	private byte[][] encodedHash;
+	
+	@Setup
+	public void setup() {
+		profile = Fixtures.profile();
+		textures = ProfileJson.toTextures(profile);
+		profileTag = HttpCaching.tag(profile);
+		texturesTag = HttpCaching.tag(textures);
+		time = System.currentTimeMillis();
+		codec = ValueCodec.forName(codecName);
+		int bytes;
+		if (codec == null) {
+			encodedHash = encodeHash();
+			bytes = 0;
+			for (byte[] part : encodedHash) {
+				bytes += part.length;
+			}
+		} else {
+			encoded = codec.encode(time, profile, textures, profileTag, texturesTag);
+			bytes = encoded.length;
+		}
+		System.out.println("\n" + codecName + ": " + bytes + " bytes per entry");
+	}
+	
+	private byte[][] encodeHash() {
+		return new byte[][]{
+				"time".getBytes(StandardCharsets.UTF_8), String.valueOf(time).getBytes(StandardCharsets.UTF_8),
+				"json".getBytes(StandardCharsets.UTF_8), profile.getBytes(StandardCharsets.UTF_8),
+				"textures".getBytes(StandardCharsets.UTF_8), textures.getBytes(StandardCharsets.UTF_8),
+				"jsonTag".getBytes(StandardCharsets.UTF_8), profileTag.getBytes(StandardCharsets.UTF_8),
+				"texturesTag".getBytes(StandardCharsets.UTF_8), texturesTag.getBytes(StandardCharsets.UTF_8)};
+	}
+	
+	@Benchmark
+	public Object encode() {
+		return codec == null ? encodeHash() : codec.encode(time, profile, textures, profileTag, texturesTag);
+	}
+	
+	@Benchmark
+	public Object decode() {
+		if (codec == null) {
+			return new ValueCodec.Value(Long.parseLong(new String(encodedHash[1], StandardCharsets.UTF_8)),
+					new String(encodedHash[3], StandardCharsets.UTF_8), new String(encodedHash[5], StandardCharsets.UTF_8),
+					new String(encodedHash[7], StandardCharsets.UTF_8), new String(encodedHash[9], StandardCharsets.UTF_8));
+		}
+		return codec.decode(encoded);
+	}
+}
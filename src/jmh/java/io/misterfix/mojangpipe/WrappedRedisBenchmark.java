@@ -0,0 +1,69 @@
+package io.misterfix.mojangpipe;
+
+import io.lettuce.core.RedisClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//Compares the old exclusive (locked) connections against shared ones under contention.
+//Runs on a LocalRedis unless it's pointed at a Redis server:
+//gradle jmhJar, then java -jar build/libs/mojangpipe-2.4-jmh.jar WrappedRedis -p redisUri=redis://pass@host:6379
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(64)
+public class WrappedRedisBenchmark {
+	@Param({"true", "false"})
+	public boolean exclusive;
+	@Param({"1", "4"})
+	public int connections;
+	@Param("local")
+	public String redisUri;
+	private LocalRedis localRedis;
+	private RedisClient client;
+	
+	@Setup
+	public void setup() {
+		if (redisUri.equals("local")) {
+			localRedis = new LocalRedis();
+			redisUri = localRedis.getUri();
+		}
+		client = RedisClient.create();
+		WrappedRedis.init(client, redisUri, connections, exclusive);
+		Cache.init(new Redis(false, null));
+		try (WrappedRedis redis = WrappedRedis.get(1)) {
+			redis.get().hmset("benchmark", Map.of("time", Long.toString(System.currentTimeMillis()), "json", "{\"id\":\"benchmark\"}"));
+		}
+	}
+	
+	@TearDown
+	public void tearDown() {
+		client.shutdown();
+		if (localRedis != null) {
+			localRedis.close();
+		}
+	}
+	
+	@Benchmark
+	public String cacheHit() {
+		Cache.getLastRequest("benchmark", 5);
+		Cache.getLastRequest("benchmark", 1);
+		return Cache.getJson("benchmark", 1);
+	}
+}
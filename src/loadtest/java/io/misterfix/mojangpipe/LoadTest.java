@@ -0,0 +1,406 @@
+package io.misterfix.mojangpipe;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Starts MojangPipe against a MockMojang and sends it Zipf distributed traffic over all its routes at a fixed rate,
+//then reports throughput, latency percentiles and what reached the mock: upstream calls and the share of them that got a 429.
+//Requests go out on schedule whether or not earlier ones have been answered, and their latency counts from when they
+//were due, so a stalled pipe shows up in the percentiles instead of slowing the test down.
+//Run with gradle loadTest -PloadTestArgs="--rate 500 --duration 60 --pipeArgs=--async", see the options below.
+class LoadTest {
+	private static final String[] ROUTES = {"profile", "textures", "uuid", "names", "nameProfile", "skin"};
+	private final OkHttpClient client;
+	private final String target;
+	private final Zipf keys;
+	private final double[] routeShares;
+	private final int maxInFlight;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	private final AtomicInteger recorded = new AtomicInteger();
+	private long[] latencies;
+	private volatile long measureFrom;
+	
+	private LoadTest(String target, Zipf keys, double[] routeShares, int maxInFlight) {
+		this.target = target;
+		this.keys = keys;
+		this.routeShares = routeShares;
+		this.maxInFlight = maxInFlight;
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(maxInFlight);
+		dispatcher.setMaxRequestsPerHost(maxInFlight);
+		this.client = new OkHttpClient.Builder()
+				.dispatcher(dispatcher)
+				.connectionPool(new ConnectionPool(maxInFlight, 1, TimeUnit.MINUTES))
+				.readTimeout(30, TimeUnit.SECONDS)
+				.retryOnConnectionFailure(false)
+				.build();
+	}
+	
+	public static void main(String[] args) throws Exception {
+		OptionParser parser = new OptionParser();
+		OptionSpec<Integer> optRate = parser.accepts("rate", "Requests per second").withRequiredArg().ofType(Integer.class).defaultsTo(200);
+		OptionSpec<Integer> optDuration = parser.accepts("duration", "Seconds measured").withRequiredArg().ofType(Integer.class).defaultsTo(60);
+		OptionSpec<Integer> optWarmup = parser.accepts("warmup", "Seconds of traffic before measuring").withRequiredArg().ofType(Integer.class).defaultsTo(10);
+		OptionSpec<Integer> optKeys = parser.accepts("keys", "Distinct players").withRequiredArg().ofType(Integer.class).defaultsTo(100000);
+		OptionSpec<Double> optZipf = parser.accepts("zipf", "Zipf exponent, higher is more skewed towards popular players").withRequiredArg().ofType(Double.class).defaultsTo(1.0);
+		OptionSpec<String> optRoutes = parser.accepts("routes", "Traffic share per route").withRequiredArg().ofType(String.class)
+				.defaultsTo("profile=40,textures=10,uuid=20,names=10,nameProfile=20");
+		OptionSpec<Integer> optMaxInFlight = parser.accepts("maxInFlight", "Requests that are due while this many are waiting are skipped").withRequiredArg().ofType(Integer.class).defaultsTo(2048);
+		OptionSpec<String> optTarget = parser.accepts("target", "URL of a MojangPipe that's already running, instead of starting one").withRequiredArg().ofType(String.class);
+		OptionSpec<Integer> optPipePort = parser.accepts("pipePort").withRequiredArg().ofType(Integer.class).defaultsTo(22580);
+		OptionSpec<String> optPipeArgs = parser.accepts("pipeArgs", "Options for the MojangPipe that's started, space separated").withRequiredArg().ofType(String.class).defaultsTo("");
+		OptionSpec<Integer> optPorts = parser.accepts("ports", "Squid ports (egress IPs) played by the mock").withRequiredArg().ofType(Integer.class).defaultsTo(8);
+		OptionSpec<Integer> optBasePort = parser.accepts("basePort").withRequiredArg().ofType(Integer.class).defaultsTo(23129);
+		OptionSpec<String> optLatency = parser.accepts("latency", "Mock latency, median milliseconds:sigma (log-normal)").withRequiredArg().ofType(String.class).defaultsTo("80:0.5");
+		OptionSpec<String> optPortLatency = parser.accepts("portLatency", "Latency of single ports, e.g. 23130=400:1.0,23131=20:0.1").withRequiredArg().ofType(String.class).defaultsTo("");
+		OptionSpec<Double> optInvalidRate = parser.accepts("invalidRate", "Share of players that don't exist (204)").withRequiredArg().ofType(Double.class).defaultsTo(0.05);
+		OptionSpec<Double> optErrorRate = parser.accepts("errorRate", "Share of calls answered with a 5xx").withRequiredArg().ofType(Double.class).defaultsTo(0.0);
+		OptionSpec<Double> optRatelimitRate = parser.accepts("ratelimitRate", "Share of calls answered with a 429 regardless of the limit").withRequiredArg().ofType(Double.class).defaultsTo(0.0);
+		OptionSpec<Integer> optMojangLimit = parser.accepts("mojangLimit", "Calls per port per window before 429s, 0 for no limit").withRequiredArg().ofType(Integer.class).defaultsTo(600);
+		OptionSpec<Integer> optMojangWindow = parser.accepts("mojangWindow", "Seconds").withRequiredArg().ofType(Integer.class).defaultsTo(600);
+		OptionSpec<String> optStorm = parser.accepts("storm", "Every port answers 429, start:seconds after the mock starts").withRequiredArg().ofType(String.class);
+		parser.accepts("help").forHelp();
+		OptionSet options = parser.parse(args);
+		if (options.has("help")) {
+			parser.printHelpOn(System.out);
+			return;
+		}
+		
+		MockMojang.Settings settings = new MockMojang.Settings();
+		settings.invalidRate = options.valueOf(optInvalidRate);
+		settings.errorRate = options.valueOf(optErrorRate);
+		settings.ratelimitRate = options.valueOf(optRatelimitRate);
+		settings.limit = options.valueOf(optMojangLimit);
+		settings.windowSeconds = options.valueOf(optMojangWindow);
+		double[] latency = parseLatency(options.valueOf(optLatency));
+		settings.latencyMedian = latency[0];
+		settings.latencySigma = latency[1];
+		if (options.has(optStorm)) {
+			String[] storm = options.valueOf(optStorm).split(":");
+			settings.stormStart = Integer.parseInt(storm[0]);
+			settings.stormSeconds = Integer.parseInt(storm[1]);
+		}
+		List<Integer> ports = new ArrayList<>();
+		for (int i = 0; i < options.valueOf(optPorts); i++) {
+			ports.add(options.valueOf(optBasePort) + i);
+		}
+		Map<Integer, double[]> portLatencies = new HashMap<>();
+		for (String port : options.valueOf(optPortLatency).split(",")) {
+			if (!port.isEmpty()) {
+				String[] parts = port.split("=");
+				portLatencies.put(Integer.parseInt(parts[0].trim()), parseLatency(parts[1]));
+			}
+		}
+		MockMojang mock = new MockMojang(settings);
+		mock.start(ports, portLatencies);
+		String mockUrl = "http://mojang.mock";
+		
+		Process pipe = null;
+		String target = options.valueOf(optTarget);
+		if (target == null) {
+			target = "http://127.0.0.1:" + options.valueOf(optPipePort);
+			pipe = startPipe(options.valueOf(optPipePort), ports, mockUrl, options.valueOf(optPipeArgs));
+			Process started = pipe;
+			Runtime.getRuntime().addShutdownHook(new Thread(started::destroyForcibly));
+		} else {
+			System.out.println("Testing " + target + ", it needs to be started with --proxyPorts " + join(ports)
+					+ " --sessionServer " + mockUrl + " --mojangApi " + mockUrl);
+		}
+		
+		LoadTest test = new LoadTest(target.replaceAll("/+$", ""), new Zipf(options.valueOf(optKeys), options.valueOf(optZipf)),
+				parseRoutes(options.valueOf(optRoutes)), options.valueOf(optMaxInFlight));
+		try {
+			test.awaitPipe(pipe);
+			test.run(mock, options.valueOf(optRate), options.valueOf(optWarmup), options.valueOf(optDuration));
+		} finally {
+			if (pipe != null) {
+				pipe.destroy();
+				if (!pipe.waitFor(10, TimeUnit.SECONDS)) {
+					pipe.destroyForcibly();
+				}
+			}
+			mock.stop();
+			test.client.dispatcher().executorService().shutdown();
+		}
+	}
+	
+	//Runs MojangPipe from the same classpath in its own JVM, so the load generator and the mock don't share its heap.
+	//Without a Redis host in the pipe options it uses an embedded store in a temporary directory.
+	private static Process startPipe(int port, List<Integer> ports, String mockUrl, String pipeArgs) throws IOException {
+		List<String> extra = pipeArgs.isBlank() ? List.of() : Arrays.asList(pipeArgs.trim().split("\\s+"));
+		List<String> command = new ArrayList<>(List.of(ProcessHandle.current().info().command().orElse("java"),
+				"-cp", System.getProperty("java.class.path"), MojangPipe.class.getName()));
+		Map<String, String> defaults = new LinkedHashMap<>();
+		defaults.put("--port", String.valueOf(port));
+		defaults.put("--proxyPorts", join(ports));
+		defaults.put("--sessionServer", mockUrl);
+		defaults.put("--mojangApi", mockUrl);
+		defaults.put("--textureServer", mockUrl);
+		defaults.put("--textureCache", Files.createTempDirectory("mojangpipe-loadtest-textures").toString());
+		defaults.put("--accessLog", "off");
+		if (!extra.contains("--redisHost")) {
+			defaults.put("--embeddedStore", Files.createTempDirectory("mojangpipe-loadtest").toString());
+		}
+		defaults.forEach((option, value) -> {
+			if (extra.stream().noneMatch(arg -> arg.equals(option) || arg.startsWith(option + "="))) {
+				command.add(option);
+				command.add(value);
+			}
+		});
+		command.addAll(extra);
+		Path log = Files.createTempFile("mojangpipe-loadtest", ".log");
+		System.out.println("Starting MojangPipe " + String.join(" ", command.subList(4, command.size())) + ", output in " + log);
+		return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+	}
+	
+	private void awaitPipe(Process pipe) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+		while (System.nanoTime() < deadline) {
+			if (pipe != null && !pipe.isAlive()) {
+				throw new IllegalStateException("MojangPipe exited with " + pipe.exitValue());
+			}
+			try (Response response = client.newCall(new Request.Builder().url(target + "/stats?format=json").build()).execute()) {
+				if (response.isSuccessful()) {
+					return;
+				}
+			} catch (IOException ignored) {
+			}
+			Thread.sleep(250);
+		}
+		throw new IllegalStateException("MojangPipe didn't come up at " + target);
+	}
+	
+	private void run(MockMojang mock, int rate, int warmupSeconds, int durationSeconds) throws InterruptedException {
+		latencies = new long[(int) Math.min(Integer.MAX_VALUE - 8, (long) rate * durationSeconds * 11 / 10 + 1024)];
+		long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		long start = System.nanoTime();
+		measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+		long[] before = null;
+		long sent = 0;
+		System.out.println("Sending " + rate + " requests/s, " + warmupSeconds + "s warmup and " + durationSeconds + "s measured");
+		for (long i = 0; ; i++) {
+			long due = start + i * interval;
+			if (due >= end) {
+				break;
+			}
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			if (before == null && due >= measureFrom) {
+				before = upstreamCounts(mock);
+			}
+			if (inFlight.get() >= maxInFlight) {
+				if (due >= measureFrom) {
+					skipped.increment();
+				}
+				continue;
+			}
+			send(due);
+			if (due >= measureFrom) {
+				sent++;
+			}
+		}
+		long[] after = upstreamCounts(mock);
+		long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+			Thread.sleep(10);
+		}
+		report(mock, sent, durationSeconds, before == null ? new long[3] : before, after);
+	}
+	
+	private void send(long due) {
+		long key = keys.next(ThreadLocalRandom.current());
+		String uuid = MockMojang.uuid(key);
+		String name = MockMojang.name(key);
+		String path;
+		switch (ROUTES[pickRoute()]) {
+			case "profile":
+				path = "/sessionserver/" + uuid;
+				break;
+			case "textures":
+				path = "/sessionserver/" + uuid + "/textures";
+				break;
+			case "uuid":
+				path = "/api/name/" + name;
+				break;
+			case "names":
+				path = "/api/names/" + uuid;
+				break;
+			case "skin":
+				path = "/texture/" + MockMojang.textureHash(key);
+				break;
+			default:
+				path = "/pipe/profile/" + name;
+		}
+		inFlight.incrementAndGet();
+		client.newCall(new Request.Builder().url(target + path).build()).enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				inFlight.decrementAndGet();
+				if (due >= measureFrom) {
+					failed.increment();
+				}
+			}
+			
+			@Override
+			public void onResponse(Call call, Response response) {
+				try (ResponseBody body = response.body()) {
+					if (body != null) {
+						body.bytes();
+					}
+				} catch (IOException e) {
+					onFailure(call, e);
+					return;
+				}
+				long latency = System.nanoTime() - due;
+				inFlight.decrementAndGet();
+				if (due >= measureFrom) {
+					statuses.computeIfAbsent(response.code(), code -> new LongAdder()).increment();
+					int slot = recorded.getAndIncrement();
+					if (slot < latencies.length) {
+						latencies[slot] = latency;
+					}
+				}
+			}
+		});
+	}
+	
+	private int pickRoute() {
+		double share = ThreadLocalRandom.current().nextDouble();
+		for (int i = 0; i < routeShares.length - 1; i++) {
+			share -= routeShares[i];
+			if (share < 0) {
+				return i;
+			}
+		}
+		return routeShares.length - 1;
+	}
+	
+	//Calls, 429s and 5xx over all ports.
+	private static long[] upstreamCounts(MockMojang mock) {
+		long[] counts = new long[3];
+		for (MockMojang.Port port : mock.getPorts()) {
+			counts[0] += port.getCalls();
+			counts[1] += port.getRatelimited();
+			counts[2] += port.getErrors();
+		}
+		return counts;
+	}
+	
+	private void report(MockMojang mock, long sent, int durationSeconds, long[] before, long[] after) {
+		int count = Math.min(recorded.get(), latencies.length);
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		long calls = after[0] - before[0];
+		long ratelimited = after[1] - before[1];
+		long errors = after[2] - before[2];
+		System.out.println();
+		System.out.println("Requests sent:      " + sent + " (" + skipped.sum() + " skipped with " + maxInFlight + " in flight, " + failed.sum() + " failed)");
+		System.out.println("Throughput:         " + String.format("%.1f", count / (double) durationSeconds) + " responses/s");
+		System.out.println("Latency (ms):       p50 " + millis(sorted, 0.5) + ", p90 " + millis(sorted, 0.9) + ", p99 " + millis(sorted, 0.99)
+				+ ", p99.9 " + millis(sorted, 0.999) + ", max " + millis(sorted, 1));
+		System.out.println("Statuses:           " + new TreeMap<>(statuses));
+		System.out.println("Upstream calls:     " + calls + " (" + String.format("%.1f", calls / (double) durationSeconds) + "/s, "
+				+ String.format("%.3f", count == 0 ? 0 : calls / (double) count) + " per response)");
+		System.out.println("Upstream 429s:      " + ratelimited + " (" + percent(ratelimited, calls) + " of calls), " + errors + " 5xx (" + percent(errors, calls) + ")");
+		for (MockMojang.Port port : mock.getPorts()) {
+			System.out.println("  port " + port.getNumber() + ":       " + port.getCalls() + " calls, " + port.getRatelimited() + " 429s, " + port.getErrors() + " 5xx (since start)");
+		}
+	}
+	
+	private static String millis(long[] sorted, double quantile) {
+		if (sorted.length == 0) {
+			return "-";
+		}
+		int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(sorted.length * quantile) - 1));
+		return String.format("%.2f", sorted[index] / 1e6);
+	}
+	
+	private static String percent(long part, long total) {
+		return String.format("%.2f%%", total == 0 ? 0 : part * 100.0 / total);
+	}
+	
+	private static double[] parseLatency(String latency) {
+		String[] parts = latency.split(":");
+		return new double[]{Double.parseDouble(parts[0]), parts.length > 1 ? Double.parseDouble(parts[1]) : 0};
+	}
+	
+	private static double[] parseRoutes(String routes) {
+		double[] shares = new double[ROUTES.length];
+		double total = 0;
+		for (String route : routes.split(",")) {
+			String[] parts = route.split("=");
+			int index = Arrays.asList(ROUTES).indexOf(parts[0].trim());
+			if (index < 0) {
+				throw new IllegalArgumentException("Unknown route " + parts[0] + ", the routes are " + String.join(", ", ROUTES));
+			}
+			shares[index] = Double.parseDouble(parts[1]);
+			total += shares[index];
+		}
+		for (int i = 0; i < shares.length; i++) {
+			shares[i] /= total;
+		}
+		return shares;
+	}
+	
+	private static String join(List<Integer> values) {
+		StringBuilder joined = new StringBuilder();
+		for (int value : values) {
+			joined.append(joined.length() > 0 ? "," : "").append(value);
+		}
+		return joined.toString();
+	}
+	
+	//Key ranks drawn from a Zipf distribution through its cumulative distribution, rank 0 being the most popular player.
+	private static class Zipf {
+		private final double[] cumulative;
+		
+		Zipf(int keys, double exponent) {
+			cumulative = new double[keys];
+			double sum = 0;
+			for (int i = 0; i < keys; i++) {
+				sum += 1 / Math.pow(i + 1, exponent);
+				cumulative[i] = sum;
+			}
+			for (int i = 0; i < keys; i++) {
+				cumulative[i] /= sum;
+			}
+		}
+		
+		long next(ThreadLocalRandom random) {
+			int index = Arrays.binarySearch(cumulative, random.nextDouble());
+			return index >= 0 ? index : Math.min(cumulative.length - 1, -index - 1);
+		}
+	}
+}
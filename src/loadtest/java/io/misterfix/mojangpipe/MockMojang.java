@@ -0,0 +1,336 @@
+package io.misterfix.mojangpipe;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//Mojang's APIs, textures.minecraft.net and the Squid ports in front of them, for load tests. MojangPipe is started with
+//its proxy ports pointing here and its upstream URLs on plain http, so every call arrives as a proxied request on one of
+//the ports, and each port plays one egress IP: its own rate limit, latency and error rates.
+//Keys are generated: player<n> is the name of the profile with uuid(n), and a fixed share of them doesn't exist.
+class MockMojang {
+	private final List<HttpServer> servers = new ArrayList<>();
+	private final Map<Integer, Port> ports = new ConcurrentHashMap<>();
+	private final ExecutorService handlers = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), daemon("mock-mojang"));
+	private final ScheduledExecutorService delays = Executors.newScheduledThreadPool(2, daemon("mock-mojang-delay"));
+	private final Settings settings;
+	private final long started = System.nanoTime();
+	
+	MockMojang(Settings settings) {
+		this.settings = settings;
+	}
+	
+	//How the mock behaves. Latencies are log-normal, given as median milliseconds and sigma.
+	static class Settings {
+		double invalidRate = 0.05;
+		double errorRate = 0;
+		double ratelimitRate = 0;
+		//Mojang-style limit per port (IP), 0 for none.
+		int limit = 600;
+		int windowSeconds = 600;
+		double latencyMedian = 80;
+		double latencySigma = 0.5;
+		//Every port answers 429 between these seconds after the start, a 429 storm.
+		int stormStart = -1;
+		int stormSeconds = 0;
+	}
+	
+	void start(List<Integer> portNumbers, Map<Integer, double[]> latencies) throws IOException {
+		for (int number : portNumbers) {
+			double[] latency = latencies.getOrDefault(number, new double[]{settings.latencyMedian, settings.latencySigma});
+			Port port = new Port(number, latency[0], latency[1], settings.limit, settings.windowSeconds);
+			ports.put(number, port);
+			HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", number), 1024);
+			server.createContext("/", exchange -> handle(port, exchange));
+			server.setExecutor(handlers);
+			server.start();
+			servers.add(server);
+		}
+	}
+	
+	void stop() {
+		servers.forEach(server -> server.stop(0));
+		delays.shutdownNow();
+		handlers.shutdownNow();
+	}
+	
+	List<Port> getPorts() {
+		List<Port> sorted = new ArrayList<>(ports.values());
+		sorted.sort((a, b) -> Integer.compare(a.number, b.number));
+		return sorted;
+	}
+	
+	private void handle(Port port, HttpExchange exchange) throws IOException {
+		byte[] request;
+		try (InputStream in = exchange.getRequestBody()) {
+			request = in.readAllBytes();
+		}
+		long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int status;
+		String body;
+		byte[] texture = null;
+		boolean storm = settings.stormStart >= 0 && second >= settings.stormStart && second < settings.stormStart + settings.stormSeconds;
+		if (storm || !port.limit.tryAcquire(second) || random.nextDouble() < settings.ratelimitRate) {
+			status = 429;
+			body = error("TooManyRequestsException", "The client has sent too many requests within a certain amount of time");
+		} else if (random.nextDouble() < settings.errorRate) {
+			status = random.nextBoolean() ? 500 : 503;
+			body = "";
+		} else if (exchange.getRequestURI().getPath().startsWith("/texture/")) {
+			//textures.minecraft.net, which goes through the same ports.
+			texture = texture(exchange.getRequestURI().getPath().substring(9));
+			status = texture != null ? 200 : 404;
+			body = "";
+		} else {
+			String[] response = respond(exchange.getRequestMethod(), exchange.getRequestURI().getPath(), request);
+			status = Integer.parseInt(response[0]);
+			body = response[1];
+		}
+		port.count(status);
+		long delay = (long) (port.latencyMedian * 1000 * Math.exp(port.latencySigma * random.nextGaussian()));
+		byte[] bytes = texture != null ? texture : body.getBytes(StandardCharsets.UTF_8);
+		String type = texture != null ? "image/png" : body.isEmpty() ? null : "application/json; charset=utf-8";
+		delays.schedule(() -> send(exchange, status, bytes, type), delay, TimeUnit.MICROSECONDS);
+	}
+	
+	private static void send(HttpExchange exchange, int status, byte[] bytes, String type) {
+		try {
+			if (type != null) {
+				exchange.getResponseHeaders().set("Content-Type", type);
+			}
+			//204s can't have a body, -1 says there is none.
+			exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+			if (bytes.length > 0) {
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(bytes);
+				}
+			}
+		} catch (IOException ignored) {
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	//Status and body for a call that got through: the four endpoints MojangPipe uses.
+	private String[] respond(String method, String path, byte[] request) {
+		String[] parts = path.split("/");
+		if (method.equals("GET") && path.startsWith("/session/minecraft/profile/") && parts.length == 5) {
+			long key = keyOfUuid(parts[4]);
+			return key < 0 || isInvalid(key) ? noContent() : ok(profile(key));
+		}
+		if (method.equals("GET") && path.startsWith("/users/profiles/minecraft/") && parts.length == 5) {
+			long key = keyOfName(parts[4]);
+			return key < 0 || isInvalid(key) ? noContent() : ok(nameEntry(key));
+		}
+		if (method.equals("GET") && path.startsWith("/user/profiles/") && path.endsWith("/names") && parts.length == 5) {
+			long key = keyOfUuid(parts[3]);
+			return key < 0 || isInvalid(key) ? noContent() : ok("[{\"name\":\"player" + key + "\"}]");
+		}
+		if (method.equals("POST") && path.equals("/profiles/minecraft")) {
+			List<String> names = ProfileJson.fromArray(new String(request, StandardCharsets.UTF_8));
+			//Like Mojang, one name that can't be a name fails the whole batch.
+			if (names.stream().anyMatch(name -> !name.matches("\\w{1,16}"))) {
+				return new String[]{"400", error("IllegalArgumentException", "Invalid profile name")};
+			}
+			StringBuilder found = new StringBuilder("[");
+			for (String name : names) {
+				long key = keyOfName(name);
+				if (key >= 0 && !isInvalid(key)) {
+					found.append(found.length() > 1 ? "," : "").append(nameEntry(key));
+				}
+			}
+			return ok(found.append(']').toString());
+		}
+		return new String[]{"404", error("Not Found", "The server has not found anything matching the request URI")};
+	}
+	
+	//A stand-in for a skin: the PNG signature and a couple of kilobytes that depend on the key.
+	private static byte[] texture(String hash) {
+		long key = keyOfUuid(hash.length() == 64 ? hash.substring(32) : "");
+		if (key < 0 || !hash.equals(textureHash(key))) {
+			return null;
+		}
+		byte[] png = new byte[2048];
+		byte[] signature = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+		System.arraycopy(signature, 0, png, 0, signature.length);
+		long value = key;
+		for (int i = signature.length; i < png.length; i++) {
+			value = mix(value);
+			png[i] = (byte) value;
+		}
+		return png;
+	}
+	
+	static String textureHash(long key) {
+		return uuid(key) + uuid(key);
+	}
+	
+	private static String[] ok(String body) {
+		return new String[]{"200", body};
+	}
+	
+	private static String[] noContent() {
+		return new String[]{"204", ""};
+	}
+	
+	private static String error(String error, String message) {
+		return "{\"error\":\"" + error + "\",\"errorMessage\":\"" + message + "\"}";
+	}
+	
+	//The same keys are always invalid, so invalid entries behave like they do in production once cached.
+	private boolean isInvalid(long key) {
+		return Math.floorMod(mix(key), 10000) < settings.invalidRate * 10000;
+	}
+	
+	static String uuid(long key) {
+		return String.format("%016x%016x", mix(key), key);
+	}
+	
+	static String name(long key) {
+		return "player" + key;
+	}
+	
+	private static long keyOfUuid(String uuid) {
+		if (uuid.length() != 32) {
+			return -1;
+		}
+		try {
+			long key = Long.parseUnsignedLong(uuid.substring(16), 16);
+			return uuid.equals(uuid(key)) ? key : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private static long keyOfName(String name) {
+		String lowerCase = name.toLowerCase(Locale.ROOT);
+		if (!lowerCase.startsWith("player")) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(lowerCase.substring(6));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private static String nameEntry(long key) {
+		return "{\"id\":\"" + uuid(key) + "\",\"name\":\"" + name(key) + "\"}";
+	}
+	
+	private static String profile(long key) {
+		String textures = "{\"timestamp\":" + System.currentTimeMillis() + ",\"profileId\":\"" + uuid(key) + "\",\"profileName\":\"" + name(key) + "\"," +
+				"\"textures\":{\"SKIN\":{\"url\":\"http://textures.minecraft.net/texture/" + textureHash(key) + "\"}}}";
+		return "{\"id\":\"" + uuid(key) + "\",\"name\":\"" + name(key) + "\",\"properties\":[{\"name\":\"textures\",\"value\":\"" +
+				Base64.getEncoder().encodeToString(textures.getBytes(StandardCharsets.UTF_8)) + "\"}]}";
+	}
+	
+	//SplitMix64, so neighbouring keys (the most popular ones) don't look alike.
+	private static long mix(long key) {
+		long hash = key + 0x9E3779B97F4A7C15L;
+		hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+		return hash ^ (hash >>> 31);
+	}
+	
+	private static ThreadFactory daemon(String name) {
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+	
+	static class Port {
+		private final int number;
+		private final double latencyMedian;
+		private final double latencySigma;
+		private final WindowLimit limit;
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder ratelimited = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		
+		Port(int number, double latencyMedian, double latencySigma, int limit, int windowSeconds) {
+			this.number = number;
+			this.latencyMedian = latencyMedian;
+			this.latencySigma = latencySigma;
+			this.limit = new WindowLimit(limit, windowSeconds);
+		}
+		
+		private void count(int status) {
+			calls.increment();
+			if (status == 429) {
+				ratelimited.increment();
+			} else if (status >= 500) {
+				errors.increment();
+			}
+		}
+		
+		int getNumber() {
+			return number;
+		}
+		
+		long getCalls() {
+			return calls.sum();
+		}
+		
+		long getRatelimited() {
+			return ratelimited.sum();
+		}
+		
+		long getErrors() {
+			return errors.sum();
+		}
+	}
+	
+	//At most limit calls in any window of that many seconds, counted per second like Mojang's per-IP limit seems to be.
+	private static class WindowLimit {
+		private final int limit;
+		private final long[] counts;
+		private long second;
+		private long total;
+		
+		WindowLimit(int limit, int windowSeconds) {
+			this.limit = limit;
+			this.counts = new long[Math.max(1, windowSeconds)];
+		}
+		
+		synchronized boolean tryAcquire(long now) {
+			if (limit <= 0) {
+				return true;
+			}
+			for (int i = 0; second < now && i < counts.length; i++) {
+				second++;
+				int slot = (int) (second % counts.length);
+				total -= counts[slot];
+				counts[slot] = 0;
+			}
+			second = Math.max(second, now);
+			if (total >= limit) {
+				return false;
+			}
+			counts[(int) (second % counts.length)]++;
+			total++;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package io.misterfix.mojangpipe;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//One line per request (route, key, source, status, proxy and latency in logfmt), written off the request threads.
+//Requests copy their record into a slot of a preallocated ring and a single writer thread formats and writes them out,
+//flushing whenever it catches up. When the ring is full the record is dropped and counted, requests never wait on the log.
+class AccessLog {
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	private static final DateTimeFormatter SECOND = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+	private static final AtomicLong claimed = new AtomicLong();
+	//Second and count of the current rate limit window, packed so they're updated together.
+	private static final AtomicLong window = new AtomicLong();
+	private static final LongAdder written = new LongAdder();
+	private static final LongAdder dropped = new LongAdder();
+	private static final LongAdder limited = new LongAdder();
+	private static Record[] ring;
+	//Sequence + 1 of the record last published in each slot, 0 while it's never been used.
+	private static AtomicLongArray published;
+	private static volatile long consumed;
+	private static int mask;
+	private static double sampleRate;
+	private static int perSecond;
+	private static Writer out;
+	//Only used by the writer thread: the formatted second of the last record, the milliseconds are appended to it.
+	private static long lastSecond = -1;
+	private static String secondPrefix;
+	
+	enum Source {
+		INVALID, MEM, STALE, API, SHED, ERROR;
+		
+		private final String label = name().toLowerCase(Locale.ROOT);
+	}
+	
+	//"-" logs to stdout, "off" turns the log off, anything else is a file appended to.
+	static void init(String destination, int capacity, double sample, int maxPerSecond) {
+		if (destination.equalsIgnoreCase("off") || capacity <= 0) {
+			return;
+		}
+		try {
+			FileOutputStream stream = destination.equals("-") ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(destination, true);
+			out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024);
+		} catch (FileNotFoundException e) {
+			throw new IllegalArgumentException("Can't open access log " + destination, e);
+		}
+		int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		ring = new Record[size];
+		for (int i = 0; i < size; i++) {
+			ring[i] = new Record();
+		}
+		published = new AtomicLongArray(size);
+		mask = size - 1;
+		sampleRate = sample;
+		perSecond = maxPerSecond;
+		Thread writer = new Thread(AccessLog::drain, "access-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	//Sampling leaves out a share of requests that didn't fail, the rate limit applies to everything.
+	static void log(String route, String key, Source source, int status, int proxy, long startNanos) {
+		if (ring == null) {
+			return;
+		}
+		long latency = System.nanoTime() - startNanos;
+		if (status < 500 && sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (perSecond > 0 && !permit(now / 1000)) {
+			limited.increment();
+			return;
+		}
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - consumed >= ring.length) {
+				dropped.increment();
+				return;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+		int slot = (int) sequence & mask;
+		Record record = ring[slot];
+		record.time = now;
+		record.route = route;
+		record.key = key;
+		record.source = source;
+		record.status = status;
+		record.proxy = proxy;
+		record.latencyNanos = latency;
+		published.set(slot, sequence + 1);
+	}
+	
+	private static boolean permit(long second) {
+		while (true) {
+			long current = window.get();
+			long count = current >>> 32 == second ? current & 0xffffffffL : 0;
+			if (count >= perSecond) {
+				return false;
+			}
+			if (window.compareAndSet(current, second << 32 | (count + 1))) {
+				return true;
+			}
+		}
+	}
+	
+	private static void drain() {
+		StringBuilder line = new StringBuilder(256);
+		long next = 0;
+		boolean unflushed = false;
+		while (true) {
+			int slot = (int) next & mask;
+			if (published.get(slot) != next + 1) {
+				if (unflushed) {
+					unflushed = !flush();
+				}
+				LockSupport.parkNanos(IDLE_NANOS);
+				continue;
+			}
+			line.setLength(0);
+			format(line, ring[slot]);
+			//The slot can be reused as soon as it's been copied into the line.
+			consumed = ++next;
+			try {
+				out.append(line);
+				written.increment();
+				unflushed = true;
+			} catch (IOException e) {
+				dropped.increment();
+			}
+		}
+	}
+	
+	private static boolean flush() {
+		try {
+			out.flush();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	private static void format(StringBuilder line, Record record) {
+		long second = Math.floorDiv(record.time, 1000);
+		if (second != lastSecond) {
+			lastSecond = second;
+			secondPrefix = "time=" + SECOND.format(Instant.ofEpochSecond(second)) + ".";
+		}
+		int millis = Math.floorMod(record.time, 1000);
+		line.append(secondPrefix);
+		appendPadded(line, millis);
+		line.append('Z');
+		line.append(" route=").append(record.route).append(" key=");
+		appendValue(line, record.key);
+		line.append(" source=").append(record.source.label).append(" status=").append(record.status).append(" proxy=");
+		if (record.proxy > 0) {
+			line.append(record.proxy);
+		} else {
+			line.append('-');
+		}
+		long micros = TimeUnit.NANOSECONDS.toMicros(record.latencyNanos);
+		line.append(" latency_ms=").append(micros / 1000).append('.');
+		appendPadded(line, (int) (micros % 1000));
+		line.append('\n');
+	}
+	
+	//Three digits, for the fraction part of a number.
+	private static void appendPadded(StringBuilder line, int value) {
+		if (value < 100) {
+			line.append(value < 10 ? "00" : "0");
+		}
+		line.append(value);
+	}
+	
+	//Keys come from the URL, they're quoted if they'd break the line up.
+	private static void appendValue(StringBuilder line, String value) {
+		boolean plain = !value.isEmpty();
+		for (int i = 0; i < value.length() && plain; i++) {
+			char c = value.charAt(i);
+			plain = c > ' ' && c != '"' && c != '=' && c != '\\' && c < 127;
+		}
+		if (plain) {
+			line.append(value);
+			return;
+		}
+		line.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				line.append('\\').append(c);
+			} else if (c < ' ' || c == 127) {
+				line.append("\\u").append(String.format("%04x", (int) c));
+			} else {
+				line.append(c);
+			}
+		}
+		line.append('"');
+	}
+	
+	static boolean isEnabled() {
+		return ring != null;
+	}
+	
+	static long getWritten() {
+		return written.sum();
+	}
+	
+	//Records lost because the writer fell behind (or couldn't write).
+	static long getDropped() {
+		return dropped.sum();
+	}
+	
+	static long getRateLimited() {
+		return limited.sum();
+	}
+	
+	private static class Record {
+		private long time;
+		private String route;
+		private String key;
+		private Source source;
+		private int status;
+		private int proxy;
+		private long latencyNanos;
+	}
+}
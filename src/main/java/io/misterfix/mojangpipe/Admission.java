@@ -0,0 +1,185 @@
+package io.misterfix.mojangpipe;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+//Limits how many requests can be waiting on Mojang at once, so that when it slows down they can't take all of
+//Spark's threads from requests the cache can answer. Cache hits never go through here. Misses past the limit
+//wait in a bounded queue, and are turned away (503 with Retry-After) when it's full or they've waited too long.
+//In blocking mode, requests waiting on another request's fetch (see SingleFlight) take a place in the queue too.
+class Admission {
+	private static final Deque<CompletableFuture<Void>> queue = new ArrayDeque<>();
+	private static final LongAdder admitted = new LongAdder();
+	private static final LongAdder shed = new LongAdder();
+	private static final LongAdder timedOut = new LongAdder();
+	private static int maxRunning = Integer.MAX_VALUE;
+	private static int maxQueued;
+	private static long maxWaitMillis;
+	private static int running;
+	//Blocking mode requests waiting on a fetch they're coalesced with.
+	private static int following;
+	
+	static void init(int concurrency, int queued, int waitMillis) {
+		maxRunning = Math.max(1, concurrency);
+		maxQueued = Math.max(0, queued);
+		maxWaitMillis = waitMillis;
+	}
+	
+	//Runs the miss once there's room for it. In blocking mode the request's own thread waits for its turn.
+	static <T> CompletableFuture<T> admit(Supplier<CompletableFuture<T>> task) {
+		CompletableFuture<Void> ticket = acquire();
+		if (MojangPipe.isAsync()) {
+			return ticket.thenCompose(granted -> run(task));
+		}
+		try {
+			ticket.join();
+		} catch (CompletionException e) {
+			return CompletableFuture.failedFuture(e.getCause());
+		}
+		return run(task);
+	}
+	
+	//Waits on a fetch that's already running. In blocking mode the request's thread is taken for as long as that, so it's
+	//turned away like a miss when the queue is full. Async requests don't take a thread while they wait.
+	static <T> CompletableFuture<T> follow(Supplier<CompletableFuture<T>> wait) {
+		if (MojangPipe.isAsync()) {
+			return wait.get();
+		}
+		synchronized (queue) {
+			if (queue.size() + following >= maxQueued) {
+				shed.increment();
+				return CompletableFuture.failedFuture(new Rejected());
+			}
+			following++;
+		}
+		CompletableFuture<T> future;
+		try {
+			future = wait.get();
+		} catch (RuntimeException e) {
+			future = CompletableFuture.failedFuture(e);
+		}
+		future.whenComplete((result, error) -> {
+			synchronized (queue) {
+				following--;
+			}
+		});
+		return future;
+	}
+	
+	private static CompletableFuture<Void> acquire() {
+		CompletableFuture<Void> ticket = new CompletableFuture<>();
+		synchronized (queue) {
+			if (running < maxRunning) {
+				running++;
+				admitted.increment();
+				ticket.complete(null);
+				return ticket;
+			}
+			if (queue.size() + following >= maxQueued) {
+				shed.increment();
+				return CompletableFuture.failedFuture(new Rejected());
+			}
+			queue.add(ticket);
+		}
+		ScheduledFuture<?> expiry = MojangPipe.getThreadPool().schedule(() -> expire(ticket), maxWaitMillis, TimeUnit.MILLISECONDS);
+		ticket.whenComplete((granted, error) -> expiry.cancel(false));
+		return ticket;
+	}
+	
+	private static void expire(CompletableFuture<Void> ticket) {
+		synchronized (queue) {
+			if (!queue.remove(ticket)) {
+				return;
+			}
+		}
+		shed.increment();
+		timedOut.increment();
+		ticket.completeExceptionally(new Rejected());
+	}
+	
+	private static <T> CompletableFuture<T> run(Supplier<CompletableFuture<T>> task) {
+		CompletableFuture<T> future;
+		try {
+			future = task.get();
+		} catch (RuntimeException e) {
+			future = CompletableFuture.failedFuture(e);
+		}
+		future.whenComplete((result, error) -> release());
+		return future;
+	}
+	
+	//Hands the slot over to the next queued miss, if there's one.
+	private static void release() {
+		CompletableFuture<Void> next;
+		synchronized (queue) {
+			next = queue.poll();
+			if (next == null) {
+				running--;
+				return;
+			}
+			admitted.increment();
+		}
+		next.complete(null);
+	}
+	
+	static boolean isRejected(Throwable error) {
+		return (error instanceof CompletionException ? error.getCause() : error) instanceof Rejected;
+	}
+	
+	//Seconds a turned away client is told to wait: about as long as the queue would have held it, or until the
+	//next proxy token if it was turned away by the ProxyScheduler.
+	static long getRetryAfter(Throwable error) {
+		Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+		return cause instanceof Rejected ? ((Rejected) cause).retryAfter : 1;
+	}
+	
+	static int getRunning() {
+		synchronized (queue) {
+			return running;
+		}
+	}
+	
+	static int getQueued() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+	
+	static int getFollowing() {
+		synchronized (queue) {
+			return following;
+		}
+	}
+	
+	static long getAdmitted() {
+		return admitted.sum();
+	}
+	
+	static long getShed() {
+		return shed.sum();
+	}
+	
+	static long getTimedOut() {
+		return timedOut.sum();
+	}
+	
+	static class Rejected extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private final long retryAfter;
+		
+		Rejected() {
+			this("Too many requests waiting on the API", Math.max(1, TimeUnit.MILLISECONDS.toSeconds(maxWaitMillis + 999)));
+		}
+		
+		Rejected(String message, long retryAfterSeconds) {
+			super(message, null, false, false);
+			this.retryAfter = retryAfterSeconds;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package io.misterfix.mojangpipe;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.ExceptionMapper;
+import spark.HaltException;
+import spark.Request;
+import spark.Response;
+import spark.embeddedserver.EmbeddedServer;
+import spark.embeddedserver.EmbeddedServerFactory;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyServer;
+import spark.embeddedserver.jetty.JettyHandler;
+import spark.embeddedserver.jetty.JettyServerFactory;
+import spark.http.matching.MatcherFilter;
+import spark.route.Routes;
+import spark.staticfiles.StaticFilesConfiguration;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+//Lets routes hand their response body over as a future. In blocking mode the request thread waits for it,
+//in async mode the request is suspended and the Jetty thread is released until the future completes.
+class AsyncRoutes {
+	static void init() {
+		if (MojangPipe.isAsync()) {
+			EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new AsyncJettyFactory());
+		}
+	}
+	
+	static Object respond(Request request, Response response, CompletableFuture<String> body) throws Exception {
+		if (!MojangPipe.isAsync()) {
+			try {
+				return body.get();
+			} catch (ExecutionException e) {
+				throw unwrap(e);
+			}
+		}
+		AsyncContext context = request.raw().startAsync();
+		body.whenComplete((content, error) -> {
+			HttpServletResponse raw = response.raw();
+			try {
+				if (error != null) {
+					Exception cause = unwrap(error);
+					if (cause instanceof HaltException) {
+						HaltException halt = (HaltException) cause;
+						raw.setStatus(halt.statusCode());
+						content = halt.body() == null ? "" : halt.body();
+					} else {
+						cause.printStackTrace();
+						raw.setStatus(500);
+						content = "";
+					}
+				}
+				byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+				//Set by HttpCaching for clients that accept it, Spark does this itself in blocking mode.
+				if ("gzip".equals(raw.getHeader("Content-Encoding"))) {
+					bytes = HttpCaching.gzip(bytes);
+				}
+				raw.setContentLength(bytes.length);
+				raw.getOutputStream().write(bytes);
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				context.complete();
+			}
+		});
+		return "";
+	}
+	
+	//For routes that write the response themselves while it's produced. The writer gets the output stream once it can be
+	//written to, and the request is over when the future it returns completes.
+	static Object stream(Request request, Response response, Function<OutputStream, CompletableFuture<Void>> writer) throws Exception {
+		OutputStream out = response.raw().getOutputStream();
+		if (!MojangPipe.isAsync()) {
+			try {
+				writer.apply(out).get();
+			} catch (ExecutionException e) {
+				throw unwrap(e);
+			}
+			return "";
+		}
+		AsyncContext context = request.raw().startAsync();
+		writer.apply(out).whenComplete((done, error) -> {
+			if (error != null) {
+				unwrap(error).printStackTrace();
+			}
+			context.complete();
+		});
+		return "";
+	}
+	
+	private static Exception unwrap(Throwable error) {
+		while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+			error = error.getCause();
+		}
+		return error instanceof Exception ? (Exception) error : new RuntimeException(error);
+	}
+	
+	//Same as Spark's default Jetty factory, but with a handler that keeps Spark from writing the
+	//response of a request that went async, that's done once the route's future completes.
+	private static class AsyncJettyFactory implements EmbeddedServerFactory {
+		@Override
+		public EmbeddedServer create(Routes routeMatcher, StaticFilesConfiguration staticFilesConfiguration, ExceptionMapper exceptionMapper, boolean hasMultipleHandler) {
+			MatcherFilter matcherFilter = new MatcherFilter(routeMatcher, staticFilesConfiguration, exceptionMapper, false, hasMultipleHandler);
+			matcherFilter.init(null);
+			return new EmbeddedJettyServer(new ServerFactory(), new AsyncJettyHandler(matcherFilter));
+		}
+	}
+	
+	private static class AsyncJettyHandler extends JettyHandler {
+		AsyncJettyHandler(Filter filter) {
+			super(filter);
+		}
+		
+		@Override
+		public void doHandle(String target, org.eclipse.jetty.server.Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+			super.doHandle(target, baseRequest, request, new HttpServletResponseWrapper(response) {
+				@Override
+				public boolean isCommitted() {
+					return request.isAsyncStarted() || super.isCommitted();
+				}
+			});
+		}
+	}
+	
+	private static class ServerFactory implements JettyServerFactory {
+		@Override
+		public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+			return new Server(new QueuedThreadPool(maxThreads, minThreads, threadTimeoutMillis));
+		}
+		
+		@Override
+		public Server create(ThreadPool threadPool) {
+			return threadPool != null ? new Server(threadPool) : new Server();
+		}
+	}
+}
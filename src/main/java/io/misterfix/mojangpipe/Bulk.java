@@ -0,0 +1,192 @@
+package io.misterfix.mojangpipe;
+
+import org.json.JSONObject;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import static spark.Spark.halt;
+
+//POST /bulk/profiles: the profiles of a JSON array of UUIDs and names, streamed back as NDJSON, one line per query in the
+//order they're resolved. The cache hits of the whole batch come out of one round trip to Redis (see Cache.lookupAllAsync),
+//misses go through admission control and the same single-flight keys and fetches as /sessionserver and /pipe/profile,
+//at most --bulkConcurrency of them at once per request. In blocking mode the request thread fetches the misses one after another.
+class Bulk {
+	private static final int MAX_QUERIES = 100;
+	private static final Pattern UUID = Pattern.compile("[0-9a-fA-F]{32}");
+	private static final Pattern NAME = Pattern.compile("\\w{1,16}");
+	private static int concurrency;
+	
+	static void init(int maxConcurrency) {
+		concurrency = Math.max(1, maxConcurrency);
+	}
+	
+	static Object handle(Request request, Response response) throws Exception {
+		List<String> queries;
+		try {
+			queries = ProfileJson.fromArray(request.body());
+		} catch (IllegalArgumentException e) {
+			throw halt(400, "Expected a JSON array of UUIDs and names");
+		}
+		if (queries.isEmpty() || queries.size() > MAX_QUERIES) {
+			throw halt(400, "Between 1 and " + MAX_QUERIES + " UUIDs and names");
+		}
+		boolean texturesOnly = request.queryParams("textures") != null;
+		response.type("application/x-ndjson");
+		return AsyncRoutes.stream(request, response, out -> new Batch(out, queries, texturesOnly).start());
+	}
+	
+	private static class Batch {
+		private final OutputStream out;
+		private final List<String> queries;
+		private final boolean texturesOnly;
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+		private final Deque<Runnable> misses = new ArrayDeque<>();
+		private final long start = System.nanoTime();
+		private int remaining;
+		private int fetching;
+		private boolean disconnected;
+		
+		Batch(OutputStream out, List<String> queries, boolean texturesOnly) {
+			this.out = out;
+			this.queries = queries;
+			this.texturesOnly = texturesOnly;
+			this.remaining = queries.size();
+		}
+		
+		CompletableFuture<Void> start() {
+			List<Integer> uuids = new ArrayList<>();
+			List<Integer> names = new ArrayList<>();
+			List<String> lines = new ArrayList<>();
+			for (int i = 0; i < queries.size(); i++) {
+				String query = queries.get(i);
+				if (UUID.matcher(query).matches()) {
+					uuids.add(i);
+				} else if (NAME.matcher(query).matches()) {
+					names.add(i);
+				} else {
+					lines.add(line(query, 400, null));
+				}
+			}
+			write(lines);
+			resolve(uuids, 1, "profile");
+			resolve(names, 4, "name_profile");
+			return done;
+		}
+		
+		//Hits are written as soon as the batch lookup returns, misses are queued for fetching.
+		private void resolve(List<Integer> indexes, int db, String stat) {
+			if (indexes.isEmpty()) {
+				return;
+			}
+			List<String> identifiers = new ArrayList<>(indexes.size());
+			indexes.forEach(index -> identifiers.add(db == 1 ? queries.get(index) : queries.get(index).toLowerCase(Locale.ROOT)));
+			String route = "bulk_" + stat;
+			Cache.lookupAllAsync(identifiers, db).whenComplete((lookups, error) -> {
+				if (error != null) {
+					error.printStackTrace();
+				}
+				List<String> lines = new ArrayList<>();
+				for (int i = 0; i < indexes.size(); i++) {
+					String query = queries.get(indexes.get(i));
+					String identifier = identifiers.get(i);
+					Supplier<CompletableFuture<Result>> fetch = db == 1 ? () -> MojangPipe.fetchProfile(identifier) : () -> MojangPipe.fetchNameProfile(identifier);
+					Cache.Lookup lookup = error == null ? lookups.get(i) : Cache.Lookup.MISS;
+					if (lookup.isInvalid()) {
+						Metrics.served(stat, Metrics.Source.INVALID, start);
+						AccessLog.log(route, identifier, AccessLog.Source.INVALID, 204, 0, start);
+						lines.add(line(query, 204, null));
+					} else if (lookup.isHit()) {
+						Metrics.served(stat, Metrics.Source.MEM, start);
+						if (lookup.isStale()) {
+							Refresher.schedule(stat + ":" + identifier, fetch);
+						}
+						AccessLog.log(route, identifier, lookup.isStale() ? AccessLog.Source.STALE : AccessLog.Source.MEM, 200, 0, start);
+						lines.add(line(query, 200, texturesOnly ? lookup.getTextures() : lookup.getJson()));
+					} else {
+						queue(() -> SingleFlight.run(stat + ":" + identifier, () -> Admission.admit(fetch)).whenComplete((result, fetchError) -> {
+							if (Admission.isRejected(fetchError)) {
+								AccessLog.log(route, identifier, AccessLog.Source.SHED, 503, 0, start);
+								write(List.of(line(query, 503, null)));
+							} else if (fetchError != null) {
+								Metrics.served(stat, Metrics.Source.API, start);
+								fetchError.printStackTrace();
+								AccessLog.log(route, identifier, AccessLog.Source.ERROR, 500, 0, start);
+								write(List.of(line(query, 500, null)));
+							} else {
+								Metrics.served(stat, Metrics.Source.API, start);
+								AccessLog.log(route, identifier, AccessLog.Source.API, result.getStatus(), result.getProxy(), start);
+								write(List.of(line(query, result.getStatus(), !result.isOk() ? null : texturesOnly ? result.getTextures() : result.getJson())));
+							}
+							fetched();
+						}));
+					}
+				}
+				write(lines);
+				next();
+			});
+		}
+		
+		private synchronized void queue(Runnable miss) {
+			misses.add(miss);
+		}
+		
+		//Starts queued misses while fewer than the limit are being fetched, called again whenever one finishes.
+		private void next() {
+			while (true) {
+				Runnable miss;
+				synchronized (this) {
+					if (fetching >= concurrency || misses.isEmpty()) {
+						return;
+					}
+					miss = misses.poll();
+					fetching++;
+				}
+				miss.run();
+			}
+		}
+		
+		private void fetched() {
+			synchronized (this) {
+				fetching--;
+			}
+			next();
+		}
+		
+		private synchronized void write(List<String> lines) {
+			if (lines.isEmpty()) {
+				return;
+			}
+			if (!disconnected) {
+				try {
+					for (String line : lines) {
+						out.write(line.getBytes(StandardCharsets.UTF_8));
+					}
+					out.flush();
+				} catch (IOException e) {
+					//The client went away, what's left is still resolved (and cached) but not written.
+					disconnected = true;
+				}
+			}
+			remaining -= lines.size();
+			if (remaining == 0) {
+				done.complete(null);
+			}
+		}
+		
+		private static String line(String query, int status, String json) {
+			return "{\"query\":" + JSONObject.quote(query) + ",\"status\":" + status + (json == null ? "" : ",\"profile\":" + json) + "}\n";
+		}
+	}
+}
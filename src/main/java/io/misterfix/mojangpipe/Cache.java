@@ -0,0 +1,277 @@
+package io.misterfix.mojangpipe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+//What the rest of MojangPipe reads cached responses from and writes them to. The LocalCache and NegativeCache are kept
+//up to date here, in front of the configured CacheBackend.
+class Cache {
+	private static CacheBackend backend;
+	
+	static void init(CacheBackend cacheBackend) {
+		backend = cacheBackend;
+	}
+	
+	//=====================STATISTICS METHODS=====================//
+	static StoredStats readStats() {
+		return backend.readStats();
+	}
+	
+	static void incrStats(Map<String, Long> stats, Map<String, Long> statusCodes) {
+		backend.incrStats(stats, statusCodes);
+	}
+	
+	//=================NORMAL OPERATIONS METHODS=================//
+	static Lookup lookup(String identifier, int db) {
+		return lookupAsync(identifier, db).join();
+	}
+	
+	static CompletableFuture<Lookup> lookupAsync(String identifier, int db) {
+		if (db == 4) {
+			return lookupProfileByName(identifier);
+		}
+		return backend.lookup(identifier, db, System.currentTimeMillis());
+	}
+	
+	//Profiles are only stored by UUID, a name -> profile lookup follows the name -> UUID entry to it.
+	//The result is stale if either of the two entries is.
+	private static CompletableFuture<Lookup> lookupProfileByName(String name) {
+		return lookupAsync(name, 2).thenCompose(uuid -> {
+			if (!uuid.isHit()) {
+				return CompletableFuture.completedFuture(uuid);
+			}
+			return lookupAsync(ProfileJson.getString(uuid.getJson(), "id"), 1)
+					.thenApply(profile -> profile.isHit() && uuid.isStale() ? profile.asStale() : profile);
+		});
+	}
+	
+	//Looks up many identifiers of one dataset at once. What the local cache doesn't have is left to the backend's batch
+	//lookup, and what that can't tell apart from a miss goes through lookupAsync one by one.
+	//Only the cache is involved, misses are left to the caller.
+	static CompletableFuture<List<Lookup>> lookupAllAsync(List<String> identifiers, int db) {
+		if (db == 4) {
+			return lookupProfilesByName(identifiers);
+		}
+		long time = System.currentTimeMillis();
+		Lookup[] lookups = new Lookup[identifiers.size()];
+		List<String> pending = new ArrayList<>();
+		List<Integer> pendingIndexes = new ArrayList<>();
+		for (int i = 0; i < lookups.length; i++) {
+			String identifier = identifiers.get(i);
+			LocalCache.Entry invalid = LocalCache.get(identifier, 5);
+			LocalCache.Entry cached;
+			if (NegativeCache.check(identifier, time) == NegativeCache.Answer.INVALID || (invalid != null && (time - invalid.getTime()) < lifetime(5))) {
+				lookups[i] = Lookup.INVALID;
+			} else if ((cached = LocalCache.get(identifier, db)) != null) {
+				lookups[i] = Lookup.of(cached, time);
+			} else {
+				pending.add(identifier);
+				pendingIndexes.add(i);
+			}
+		}
+		if (pending.isEmpty()) {
+			return CompletableFuture.completedFuture(Arrays.asList(lookups));
+		}
+		return backend.lookupAll(pending, db, time).thenCompose(found -> {
+			List<CompletableFuture<Void>> fallbacks = new ArrayList<>();
+			for (int i = 0; i < found.length; i++) {
+				int index = pendingIndexes.get(i);
+				if (found[i] != null) {
+					lookups[index] = found[i];
+				} else {
+					fallbacks.add(lookupAsync(pending.get(i), db).thenAccept(lookup -> lookups[index] = lookup));
+				}
+			}
+			return CompletableFuture.allOf(fallbacks.toArray(new CompletableFuture<?>[0])).thenApply(done -> Arrays.asList(lookups));
+		});
+	}
+	
+	//Batch version of lookupProfileByName: all names first, then the profiles of the ones that were found.
+	private static CompletableFuture<List<Lookup>> lookupProfilesByName(List<String> names) {
+		return lookupAllAsync(names, 2).thenCompose(uuids -> {
+			List<String> ids = new ArrayList<>();
+			for (Lookup uuid : uuids) {
+				if (uuid.isHit()) {
+					ids.add(ProfileJson.getString(uuid.getJson(), "id"));
+				}
+			}
+			return lookupAllAsync(ids, 1).thenApply(profiles -> {
+				List<Lookup> lookups = new ArrayList<>(names.size());
+				Iterator<Lookup> profile = profiles.iterator();
+				for (Lookup uuid : uuids) {
+					if (!uuid.isHit()) {
+						lookups.add(uuid);
+						continue;
+					}
+					Lookup next = profile.next();
+					lookups.add(next.isHit() && uuid.isStale() ? next.asStale() : next);
+				}
+				return lookups;
+			});
+		});
+	}
+	
+	//INVALID for an invalid entry from the given time that's still valid, null otherwise.
+	static Lookup invalid(String identifier, long invalidTime, long time) {
+		if (invalidTime == 0 || (time - invalidTime) >= lifetime(5)) {
+			return null;
+		}
+		rememberInvalid(identifier, invalidTime);
+		return Lookup.INVALID;
+	}
+	
+	static void rememberInvalid(String identifier, long time) {
+		LocalCache.put(identifier, 5, time, "");
+		NegativeCache.add(identifier, time);
+	}
+	
+	static boolean hasTextures(int db) {
+		return db == 1;
+	}
+	
+	//Textures of entries cached before they were stored alongside the json are worked out when they're read.
+	static String deriveTextures(int db, String json) {
+		if (!hasTextures(db)) {
+			return null;
+		}
+		return json.isEmpty() ? json : ProfileJson.toTextures(json);
+	}
+	
+	static long getLastRequest(String identifier, int db) {
+		LocalCache.Entry entry = backend.get(identifier, db).join();
+		return entry == null ? 0 : entry.getTime();
+	}
+	
+	static String getJson(String identifier, int db) {
+		LocalCache.Entry entry = backend.get(identifier, db).join();
+		return entry == null ? "" : entry.getJson();
+	}
+	
+	//Profiles get their textures representation worked out here, once, instead of on every /textures request.
+	static LocalCache.Entry putJson(String identifier, long time, String json, int db) {
+		return putJson(identifier, time, json, deriveTextures(db, json), db);
+	}
+	
+	//The ETags are worked out here, once, and stored with the entry so nothing that reads it back has to hash it again.
+	static LocalCache.Entry putJson(String identifier, long time, String json, String textures, int db) {
+		LocalCache.Entry entry = LocalCache.put(identifier, db, time, json, textures, HttpCaching.tag(json), HttpCaching.tag(textures));
+		NegativeCache.remove(identifier);
+		backend.put(identifier, db, entry);
+		return entry;
+	}
+	
+	//An entry another node fetched and stored, only this node's caches still need it.
+	static LocalCache.Entry remember(String identifier, long time, String json, int db) {
+		LocalCache.Entry entry = LocalCache.put(identifier, db, time, json, deriveTextures(db, json), null, null);
+		NegativeCache.remove(identifier);
+		return entry;
+	}
+	
+	//Fills the name -> UUID index from the responses that say what a UUID's current name is: profiles and name histories.
+	//The name can't be invalid anymore either.
+	static void putIndexes(String identifier, long time, String json, int db) {
+		String name = db == 1 ? ProfileJson.getString(json, "name") : db == 3 ? ProfileJson.getCurrentName(json) : null;
+		if (name == null) {
+			return;
+		}
+		String key = name.toLowerCase(Locale.ROOT);
+		putJson(key, time, ProfileJson.toNameEntry(identifier, name), 2);
+		backend.removeInvalid(key);
+	}
+	
+	//How long an entry is kept for, in milliseconds. Data entries are kept until their stale window is over too.
+	static long lifetime(int db) {
+		if (db == 5) {
+			return MojangPipe.getInvalidLifetime() * 60000L;
+		}
+		return (MojangPipe.getCacheLifetime() + MojangPipe.getStaleLifetime()) * 60000L;
+	}
+	
+	//Other error codes are accounted to the proxy they came through by the ProxyScheduler.
+	static void handleStatusCode(int code, String identifier) {
+		if (code == 204) {
+			long time = System.currentTimeMillis();
+			rememberInvalid(identifier, time);
+			backend.putInvalid(identifier, time);
+		}
+	}
+	
+	static class StoredStats {
+		private final Map<String, String> stats;
+		private final Map<String, String> statusCodes;
+		private final long[] sizes;
+		
+		StoredStats(Map<String, String> stats, Map<String, String> statusCodes, long[] sizes) {
+			this.stats = stats;
+			this.statusCodes = statusCodes;
+			this.sizes = sizes;
+		}
+		
+		Map<String, String> getStats() {
+			return stats;
+		}
+		
+		Map<String, String> getStatusCodes() {
+			return statusCodes;
+		}
+		
+		//Indexed by legacy db number.
+		long[] getSizes() {
+			return sizes;
+		}
+	}
+	
+	static class Lookup {
+		static final Lookup INVALID = new Lookup(null, false);
+		static final Lookup MISS = new Lookup(null, false);
+		private final LocalCache.Entry entry;
+		private final boolean stale;
+		
+		private Lookup(LocalCache.Entry entry, boolean stale) {
+			this.entry = entry;
+			this.stale = stale;
+		}
+		
+		//Entries older than the cache lifetime are still served, as stale, until their stale window is over.
+		static Lookup of(LocalCache.Entry entry, long now) {
+			long age = now - entry.getTime();
+			if (age >= lifetime(1)) {
+				return MISS;
+			}
+			return new Lookup(entry, age >= MojangPipe.getCacheLifetime() * 60000L);
+		}
+		
+		boolean isInvalid() {
+			return this == INVALID;
+		}
+		
+		boolean isHit() {
+			return entry != null;
+		}
+		
+		boolean isStale() {
+			return stale;
+		}
+		
+		LocalCache.Entry getEntry() {
+			return entry;
+		}
+		
+		String getJson() {
+			return entry.getJson();
+		}
+		
+		String getTextures() {
+			return entry.getTextures();
+		}
+		
+		private Lookup asStale() {
+			return new Lookup(entry, true);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package io.misterfix.mojangpipe;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+//Where cached responses, invalid identifiers and the counters behind /stats are kept: Redis, or the embedded MappedStore.
+//Datasets are numbered like the original Redis databases (1 profiles, 2 name -> UUID, 3 name lists, 5 invalid), name -> profile
+//lookups (4) never get here, Cache follows the name -> UUID entry to the profile.
+//Backends put what they read into the LocalCache themselves, each of them knows best when that's worth it.
+interface CacheBackend {
+	//Looks up a data entry, invalid identifiers first.
+	CompletableFuture<Cache.Lookup> lookup(String identifier, int db, long time);
+	
+	//Looks up many identifiers of one dataset at once, the ones left null are looked up one by one by Cache.
+	CompletableFuture<Cache.Lookup[]> lookupAll(List<String> identifiers, int db, long time);
+	
+	//The stored entry, whatever its age. Completes with null if there's none.
+	CompletableFuture<LocalCache.Entry> get(String identifier, int db);
+	
+	//Stores the entry with its ETags.
+	void put(String identifier, int db, LocalCache.Entry entry);
+	
+	void putInvalid(String identifier, long time);
+	
+	void removeInvalid(String identifier);
+	
+	Cache.StoredStats readStats();
+	
+	//Adds a batch of counts from Metrics to the stats.
+	void incrStats(Map<String, Long> stats, Map<String, Long> statusCodes);
+}
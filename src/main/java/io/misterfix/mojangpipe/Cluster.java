@@ -0,0 +1,252 @@
+package io.misterfix.mojangpipe;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+//Lets several instances share one Redis without multiplying upstream traffic. An upstream fetch is leased in Redis
+//(SET NX with a TTL) so only one node makes it, the others wait for the result to be published when it's done.
+//Proxy tokens are claimed from buckets kept in Redis, so all nodes together stay within each IP's rate limit.
+//The keys live in db 0 next to the stats.
+class Cluster {
+	private static final String CHANNEL = "mojangpipe:fetched";
+	private static final String LEASE_PREFIX = "lease:";
+	private static final String TOKENS_PREFIX = "proxy:tokens:";
+	private static final String QUARANTINE_PREFIX = "proxy:quarantine:";
+	//How long a finished lease keeps its result, for nodes that missed the cache just before it was written.
+	private static final long RESULT_MILLIS = 5000;
+	//SET NX with a TTL, but a lease that's already taken is returned: the owner while it's fetching, the result
+	//(the same message that was published) once it's done.
+	private static final String ACQUIRE_SCRIPT =
+			"local lease = redis.call('get', KEYS[1])\n" +
+			"if lease then return lease end\n" +
+			"redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2])\n" +
+			"return 'OK'";
+	//Swaps the lease for the result if it's still ours and tells the other nodes, in one go so nobody
+	//can take the lease in between and miss the message.
+	private static final String RELEASE_SCRIPT =
+			"if redis.call('get', KEYS[1]) == ARGV[1] then redis.call('set', KEYS[1], ARGV[3], 'PX', ARGV[4]) end\n" +
+			"return redis.call('publish', ARGV[2], ARGV[3])";
+	//KEYS are (bucket, quarantine) pairs of the candidate ports, ARGV is now, capacity, tokens per millisecond and
+	//the local score of every candidate. Buckets are refilled lazily like the local ones, the best non-quarantined
+	//port with a whole token left gets one taken. Returns its index among the candidates, or if there's none,
+	//-1 minus the milliseconds until one of them has a token again.
+	private static final String CLAIM_SCRIPT =
+			"local now = tonumber(ARGV[1])\n" +
+			"local capacity = tonumber(ARGV[2])\n" +
+			"local perMilli = tonumber(ARGV[3])\n" +
+			"local best, bestScore, bestTokens, bestTime, wait = -1, 0, 0, 0, math.huge\n" +
+			"for i = 1, #KEYS, 2 do\n" +
+			"  local bucket = redis.call('hmget', KEYS[i], 'tokens', 'time')\n" +
+			"  local tokens = tonumber(bucket[1]) or capacity\n" +
+			"  local time = tonumber(bucket[2]) or now\n" +
+			"  if now > time then tokens = math.min(capacity, tokens + (now - time) * perMilli); time = now end\n" +
+			"  local quarantined = math.max(0, redis.call('pttl', KEYS[i + 1]))\n" +
+			"  local score = tonumber(ARGV[3 + (i + 1) / 2]) * tokens / capacity\n" +
+			"  if quarantined == 0 and tokens >= 1 then\n" +
+			"    if score > bestScore then best, bestScore, bestTokens, bestTime = i, score, tokens, time end\n" +
+			"  else\n" +
+			"    wait = math.min(wait, math.max(quarantined, math.ceil((1 - tokens) / perMilli)))\n" +
+			"  end\n" +
+			"end\n" +
+			"if best < 0 then return -1 - wait end\n" +
+			"redis.call('hmset', KEYS[best], 'tokens', tostring(bestTokens - 1), 'time', tostring(bestTime))\n" +
+			"redis.call('pexpire', KEYS[best], math.ceil(capacity / perMilli) * 2)\n" +
+			"return (best - 1) / 2";
+	//Results other nodes are fetching for us, by lease.
+	private static final Map<String, CompletableFuture<String[]>> waiting = new ConcurrentHashMap<>();
+	private static final String node = UUID.randomUUID().toString();
+	private static final AtomicLong sequence = new AtomicLong();
+	private static final LongAdder leased = new LongAdder();
+	private static final LongAdder waited = new LongAdder();
+	private static final LongAdder timeouts = new LongAdder();
+	private static final LongAdder claims = new LongAdder();
+	private static final LongAdder claimsFailed = new LongAdder();
+	private static boolean enabled;
+	private static long leaseMillis;
+	private static String acquireSha;
+	private static String releaseSha;
+	private static String claimSha;
+	private static StatefulRedisPubSubConnection<String, String> subscription;
+	
+	static void init(RedisClient client, String uri, long leaseTimeMillis) {
+		leaseMillis = leaseTimeMillis;
+		try (WrappedRedis redis = WrappedRedis.get(0)) {
+			acquireSha = redis.get().scriptLoad(ACQUIRE_SCRIPT);
+			releaseSha = redis.get().scriptLoad(RELEASE_SCRIPT);
+			claimSha = redis.get().scriptLoad(CLAIM_SCRIPT);
+		}
+		subscription = client.connectPubSub(RedisURI.create(uri));
+		subscription.addListener(new RedisPubSubAdapter<String, String>() {
+			@Override
+			public void message(String channel, String message) {
+				published(message);
+			}
+		});
+		subscription.sync().subscribe(CHANNEL);
+		enabled = true;
+	}
+	
+	static boolean isEnabled() {
+		return enabled;
+	}
+	
+	//Runs the fetch if this node gets the lease for the identifier, otherwise waits for the node that has it.
+	//If that node doesn't answer before the lease runs out, the fetch is made here after all.
+	static CompletableFuture<Result> lease(String identifier, int db, Supplier<CompletableFuture<Result>> fetch) {
+		if (!enabled) {
+			return fetch.get();
+		}
+		String key = LEASE_PREFIX + db + ":" + identifier;
+		String owner = node + ":" + sequence.incrementAndGet();
+		//Registered before asking for the lease, so a result published right after can't be missed.
+		CompletableFuture<String[]> waiter = new CompletableFuture<>();
+		CompletableFuture<String[]> existing = waiting.putIfAbsent(key, waiter);
+		CompletableFuture<String[]> published = existing != null ? existing : waiter;
+		return Cluster.<String>script(acquireSha, ACQUIRE_SCRIPT, ScriptOutputType.VALUE, new String[]{key}, owner, Long.toString(leaseMillis)).handle((reply, error) -> {
+			if (error != null) {
+				//Without Redis there's nobody to wait for.
+				waiting.remove(key, waiter);
+				return fetch.get();
+			}
+			if ("OK".equals(reply)) {
+				//The waiter stays registered, another caller here may be sharing it. Our own message clears it.
+				leased.increment();
+				return lead(key, owner, fetch);
+			}
+			waited.increment();
+			if (reply.indexOf('\n') >= 0) {
+				waiting.remove(key, waiter);
+				return CompletableFuture.completedFuture(toResult(reply.split("\n", 4), identifier, db));
+			}
+			return published.copy().completeOnTimeout(null, leaseMillis, TimeUnit.MILLISECONDS).thenCompose(message -> {
+				if (message == null) {
+					timeouts.increment();
+					waiting.remove(key, published);
+					return fetch.get();
+				}
+				return CompletableFuture.completedFuture(toResult(message, identifier, db));
+			});
+		}).thenCompose(Function.identity());
+	}
+	
+	private static CompletableFuture<Result> lead(String key, String owner, Supplier<CompletableFuture<Result>> fetch) {
+		CompletableFuture<Result> fetched;
+		try {
+			fetched = fetch.get();
+		} catch (RuntimeException e) {
+			fetched = CompletableFuture.failedFuture(e);
+		}
+		return fetched.whenComplete((result, error) -> {
+			//Waiters on a failed fetch get a 502 rather than all trying again, a 503 if no proxy had a token for it.
+			String message = key + "\n" + (error != null ? Admission.isRejected(error) ? 503 : 502 : result.getStatus()) + "\n" +
+					(error == null && result.isOk() ? result.getEntry().getTime() + "\n" + result.getJson() : "0\n");
+			Redis.finish(script(releaseSha, RELEASE_SCRIPT, ScriptOutputType.INTEGER, new String[]{key}, owner, CHANNEL, message, Long.toString(RESULT_MILLIS)));
+		});
+	}
+	
+	//Messages are "lease key \n status \n time \n json", the json only for 200s.
+	private static void published(String message) {
+		String[] parts = message.split("\n", 4);
+		if (parts.length < 4) {
+			return;
+		}
+		CompletableFuture<String[]> waiter = waiting.remove(parts[0]);
+		if (waiter != null) {
+			//Off the Redis client's I/O thread: whatever is chained on the result may send Redis commands of its own.
+			MojangPipe.getThreadPool().execute(() -> waiter.complete(parts));
+		}
+	}
+	
+	//The node that fetched it has already cached it in Redis, it only has to be remembered here.
+	private static Result toResult(String[] message, String identifier, int db) {
+		int status = Integer.parseInt(message[1]);
+		long time = Long.parseLong(message[2]);
+		if (status == 200) {
+			return new Result(200, Cache.remember(identifier, time, message[3], db));
+		}
+		if (status == 204) {
+			Cache.rememberInvalid(identifier, time > 0 ? time : System.currentTimeMillis());
+		}
+		return new Result(status, "");
+	}
+	
+	//Takes a token from the best of the given ports' shared buckets. If they're all empty or quarantined it's -1 minus
+	//the milliseconds until one of them has a token.
+	static CompletableFuture<Long> claim(int[] ports, double[] scores, double capacity, double perMilli) {
+		String[] keys = new String[ports.length * 2];
+		String[] args = new String[3 + ports.length];
+		args[0] = Long.toString(System.currentTimeMillis());
+		args[1] = Double.toString(capacity);
+		args[2] = Double.toString(perMilli);
+		for (int i = 0; i < ports.length; i++) {
+			keys[i * 2] = TOKENS_PREFIX + ports[i];
+			keys[i * 2 + 1] = QUARANTINE_PREFIX + ports[i];
+			args[3 + i] = Double.toString(scores[i]);
+		}
+		return Cluster.<Long>script(claimSha, CLAIM_SCRIPT, ScriptOutputType.INTEGER, keys, args).thenApply(index -> {
+			if (index < 0) {
+				claimsFailed.increment();
+			} else {
+				claims.increment();
+			}
+			return index;
+		});
+	}
+	
+	//Quarantines the port on every node, Mojang rate limits the IP and not the instance.
+	static void quarantine(int port, long millis) {
+		if (enabled) {
+			Redis.finish(Redis.command(0, redis -> redis.set(QUARANTINE_PREFIX + port, node, SetArgs.Builder.px(millis))));
+		}
+	}
+	
+	private static <T> CompletableFuture<T> script(String sha, String script, ScriptOutputType type, String[] keys, String... args) {
+		return Redis.<T>command(0, redis -> redis.evalsha(sha, type, keys, args)).handle((result, error) -> {
+			if (error == null) {
+				return CompletableFuture.completedFuture(result);
+			}
+			Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+			if (cause instanceof RedisNoScriptException) {
+				//Script cache was flushed, e.g. by a Redis restart.
+				return Redis.<T>command(0, redis -> redis.eval(script, type, keys, args));
+			}
+			return CompletableFuture.<T>failedFuture(cause);
+		}).thenCompose(Function.identity());
+	}
+	
+	static long getLeased() {
+		return leased.sum();
+	}
+	
+	static long getWaited() {
+		return waited.sum();
+	}
+	
+	static long getTimeouts() {
+		return timeouts.sum();
+	}
+	
+	static long getClaims() {
+		return claims.sum();
+	}
+	
+	static long getClaimsFailed() {
+		return claimsFailed.sum();
+	}
+}
@@ -0,0 +1,133 @@
+package io.misterfix.mojangpipe;
+
+import spark.Request;
+import spark.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+//Headers that let clients and caches in front of MojangPipe reuse what they already have: an ETag (a hash of the body,
+//computed once when the entry is cached and stored with it) answered with 304 on If-None-Match, Cache-Control from the
+//time the entry has left, and gzip for bodies large enough to be worth it.
+class HttpCaching {
+	private static final int GZIP_MIN_LENGTH = 512;
+	//Appended to the tag of gzipped responses, they're a different representation of the same body.
+	private static final String GZIP_SUFFIX = "--gzip";
+	private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	//Invalid entries all have an empty body.
+	private static final String EMPTY_TAG = digest("");
+	
+	//The (unquoted) ETag of a body: the first 96 bits of its SHA-1, so every instance gives the same one.
+	static String tag(String body) {
+		if (body == null) {
+			return null;
+		}
+		return body.isEmpty() ? EMPTY_TAG : digest(body);
+	}
+	
+	private static String digest(String body) {
+		byte[] hash = digests.get().digest(body.getBytes(StandardCharsets.UTF_8));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, 12));
+	}
+	
+	//Sets the caching headers of a cached entry and returns the body to send, which is empty for a 304.
+	static String respond(Request request, Response response, LocalCache.Entry entry, boolean texturesOnly) {
+		String body = texturesOnly ? entry.getTextures() : entry.getJson();
+		String tag = texturesOnly ? entry.getTexturesTag() : entry.getJsonTag();
+		long now = System.currentTimeMillis();
+		long fresh = Math.max(0, entry.getTime() + MojangPipe.getCacheLifetime() * 60000L - now) / 1000;
+		String cacheControl = "public, max-age=" + fresh;
+		if (MojangPipe.getStaleLifetime() > 0) {
+			long stale = Math.max(0, entry.getTime() + Cache.lifetime(1) - now) / 1000 - fresh;
+			cacheControl += ", stale-while-revalidate=" + stale;
+		}
+		response.header("Cache-Control", cacheControl);
+		response.header("Vary", "Accept-Encoding");
+		
+		boolean gzip = body.length() >= GZIP_MIN_LENGTH && acceptsGzip(request.headers("Accept-Encoding"));
+		response.header("ETag", "\"" + tag + (gzip ? GZIP_SUFFIX : "") + "\"");
+		if (matches(request.headers("If-None-Match"), tag)) {
+			response.status(304);
+			return "";
+		}
+		if (gzip) {
+			//Spark compresses the body itself once this is set, AsyncRoutes does it in async mode.
+			response.header("Content-Encoding", "gzip");
+		}
+		return body;
+	}
+	
+	//For content-addressed bodies, which never change: caches can keep them for good, the address is the ETag.
+	//Only for a body that's there to be sent, If-None-Match: * matches anything. True if the client already has it, and gets a 304.
+	static boolean respondImmutable(Request request, Response response, String tag) {
+		response.header("Cache-Control", "public, max-age=31536000, immutable");
+		response.header("ETag", "\"" + tag + "\"");
+		if (matches(request.headers("If-None-Match"), tag)) {
+			response.status(304);
+			return true;
+		}
+		return false;
+	}
+	
+	//If-None-Match uses weak comparison, and either representation's tag matches.
+	private static boolean matches(String ifNoneMatch, String tag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*")) {
+				return true;
+			}
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.length() >= 2 && candidate.startsWith("\"") && candidate.endsWith("\"")) {
+				candidate = candidate.substring(1, candidate.length() - 1);
+			}
+			if (candidate.endsWith(GZIP_SUFFIX)) {
+				candidate = candidate.substring(0, candidate.length() - GZIP_SUFFIX.length());
+			}
+			if (candidate.equals(tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if (parts[0].trim().equalsIgnoreCase("gzip")) {
+				return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+	
+	static byte[] gzip(byte[] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 32);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(body);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+}
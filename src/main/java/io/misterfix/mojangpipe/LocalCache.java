@@ -0,0 +1,251 @@
+package io.misterfix.mojangpipe;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+//In-JVM cache sitting in front of Redis, so hot identifiers don't need a round trip per request.
+//Entries are grouped per identifier (one slot per identifier, one entry per database) so that
+//the invalid cache check can be answered locally whenever a fresh entry for the identifier is known.
+class LocalCache {
+	private static final int SEGMENTS = 16;
+	//Rough per-slot overhead (map node, slot object, entry array) used for the memory estimate.
+	private static final int SLOT_OVERHEAD = 128;
+	//Returned for invalid cache lookups of identifiers that are known to be valid.
+	private static final Entry NOT_INVALID = new Entry(0, Long.MAX_VALUE, "", null);
+	private static final Segment[] segments = new Segment[SEGMENTS];
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder evictions = new LongAdder();
+	private static boolean enabled;
+	
+	static void init(int maxEntries, long maxBytes) {
+		enabled = maxEntries > 0 && maxBytes > 0;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS), Math.max(1, maxBytes / SEGMENTS));
+		}
+	}
+	
+	static boolean isEnabled() {
+		return enabled;
+	}
+	
+	private static Segment segment(String identifier) {
+		int hash = identifier.hashCode();
+		return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+	}
+	
+	//For the invalid cache (db 5), a fresh entry for the identifier in any of the data databases
+	//counts as a hit too: invalid requests evict the whole slot, so the identifier can't be invalid.
+	static Entry get(String identifier, int db) {
+		if (!enabled) {
+			return null;
+		}
+		Entry entry = segment(identifier).get(identifier, db, System.currentTimeMillis());
+		if (entry == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return entry;
+	}
+	
+	static Entry put(String identifier, int db, long time, String json) {
+		return put(identifier, db, time, json, null, null, null);
+	}
+	
+	//Returns the entry, also when it isn't cached because the cache is disabled or it has already expired.
+	//The tags are the ones stored with the entry, null for entries stored before they were.
+	static Entry put(String identifier, int db, long time, String json, String textures, String jsonTag, String texturesTag) {
+		Entry entry = new Entry(time, time + Cache.lifetime(db), json, textures, jsonTag, texturesTag);
+		if (enabled && entry.expires > System.currentTimeMillis()) {
+			segment(identifier).put(identifier, db, entry);
+		}
+		return entry;
+	}
+	
+	static void remove(String identifier) {
+		if (enabled) {
+			segment(identifier).remove(identifier);
+		}
+	}
+	
+	static long getHits() {
+		return hits.sum();
+	}
+	
+	static long getMisses() {
+		return misses.sum();
+	}
+	
+	static long getEvictions() {
+		return evictions.sum();
+	}
+	
+	static int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+	
+	static long usedBytes() {
+		long used = 0;
+		for (Segment segment : segments) {
+			used += segment.usedBytes();
+		}
+		return used;
+	}
+	
+	static class Entry {
+		private final long time;
+		private final long expires;
+		private final String json;
+		private final String textures;
+		private final String jsonTag;
+		private final String texturesTag;
+		
+		Entry(long time, long expires, String json, String textures) {
+			this(time, expires, json, textures, null, null);
+		}
+		
+		//Tags are worked out once when the entry is cached and stored with it, they're only hashed here if they're missing.
+		Entry(long time, long expires, String json, String textures, String jsonTag, String texturesTag) {
+			this.time = time;
+			this.expires = expires;
+			this.json = json;
+			this.textures = textures;
+			this.jsonTag = jsonTag != null ? jsonTag : HttpCaching.tag(json);
+			this.texturesTag = texturesTag != null || textures == null ? texturesTag : HttpCaching.tag(textures);
+		}
+		
+		long getTime() {
+			return time;
+		}
+		
+		String getJson() {
+			return json;
+		}
+		
+		//The /textures representation, only for profiles.
+		String getTextures() {
+			return textures;
+		}
+		
+		//ETags of the json and textures, see HttpCaching.
+		String getJsonTag() {
+			return jsonTag;
+		}
+		
+		String getTexturesTag() {
+			return texturesTag;
+		}
+		
+		private int weight() {
+			return 96 + (json.length() + jsonTag.length()) * 2 + (textures == null ? 0 : (textures.length() + texturesTag.length()) * 2);
+		}
+	}
+	
+	private static class Slot {
+		private final Entry[] entries = new Entry[6];
+		private int weight;
+	}
+	
+	private static class Segment {
+		private final Map<String, Slot> slots = new LinkedHashMap<>(64, 0.75f, true);
+		private final int maxEntries;
+		private final long maxBytes;
+		private long usedBytes;
+		
+		Segment(int maxEntries, long maxBytes) {
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+		}
+		
+		synchronized Entry get(String identifier, int db, long now) {
+			Slot slot = slots.get(identifier);
+			if (slot == null) {
+				return null;
+			}
+			Entry entry = slot.entries[db];
+			if (entry != null && entry.expires <= now) {
+				slot.entries[db] = null;
+				slot.weight -= entry.weight();
+				usedBytes -= entry.weight();
+				entry = null;
+			}
+			if (entry == null && db == 5) {
+				for (int i = 1; i < 5; i++) {
+					Entry valid = slot.entries[i];
+					if (valid != null && valid.expires > now) {
+						return NOT_INVALID;
+					}
+				}
+			}
+			return entry;
+		}
+		
+		synchronized void put(String identifier, int db, Entry entry) {
+			Slot slot = slots.get(identifier);
+			if (slot == null) {
+				slot = new Slot();
+				slot.weight = SLOT_OVERHEAD + identifier.length() * 2;
+				usedBytes += slot.weight;
+				slots.put(identifier, slot);
+			}
+			if (db != 5 && slot.entries[5] != null) {
+				//An identifier with data isn't invalid (anymore).
+				Entry invalid = slot.entries[5];
+				slot.entries[5] = null;
+				slot.weight -= invalid.weight();
+				usedBytes -= invalid.weight();
+			}
+			if (db == 5) {
+				//An identifier that turned out to be invalid can't have valid data cached anymore.
+				for (int i = 1; i < 5; i++) {
+					Entry cleared = slot.entries[i];
+					if (cleared != null) {
+						slot.entries[i] = null;
+						slot.weight -= cleared.weight();
+						usedBytes -= cleared.weight();
+					}
+				}
+			}
+			Entry previous = slot.entries[db];
+			if (previous != null) {
+				slot.weight -= previous.weight();
+				usedBytes -= previous.weight();
+			}
+			slot.entries[db] = entry;
+			slot.weight += entry.weight();
+			usedBytes += entry.weight();
+			evict();
+		}
+		
+		synchronized void remove(String identifier) {
+			Slot slot = slots.remove(identifier);
+			if (slot != null) {
+				usedBytes -= slot.weight;
+			}
+		}
+		
+		private void evict() {
+			Iterator<Slot> iterator = slots.values().iterator();
+			while ((slots.size() > maxEntries || usedBytes > maxBytes) && iterator.hasNext()) {
+				usedBytes -= iterator.next().weight;
+				iterator.remove();
+				evictions.increment();
+			}
+		}
+		
+		synchronized int size() {
+			return slots.size();
+		}
+		
+		synchronized long usedBytes() {
+			return usedBytes;
+		}
+	}
+}
@@ -0,0 +1,511 @@
+package io.misterfix.mojangpipe;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+//Embedded CacheBackend, for a single instance without Redis. Entries are appended to memory-mapped segment files and found
+//through an index of key hash -> record location, the records themselves stay off-heap in the page cache.
+//Everything in a dataset has the same lifetime, so segments expire roughly in the order they were written: a segment is
+//deleted once all its records have expired, or early (oldest first) when the store goes over its size. Nothing is compacted.
+//The index is rebuilt from the segments on startup, so a restarted instance comes back with the cache it had.
+class MappedStore implements CacheBackend {
+	private static final int MAGIC = 0x4d505331;
+	private static final int FILE_HEADER = 8;
+	//Length, checksum (of everything after it), db, expiry time and key length.
+	private static final int RECORD_HEADER = 4 + 4 + 1 + 8 + 2;
+	//Written as the expiry time of a record that deletes the key. Its value is how long its segment has to be kept: until
+	//the record it deletes would have expired, or that record comes back with the next restart.
+	private static final long TOMBSTONE = 0;
+	private static final String SUFFIX = ".segment";
+	private final Path directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	//Values are framed like in Redis with a codec, see ValueCodec.
+	private final ValueCodec codec;
+	private final Index index = new Index();
+	private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+	private final Map<String, Long> stats = new ConcurrentHashMap<>();
+	private final Map<String, Long> statusCodes = new ConcurrentHashMap<>();
+	//Guarded by this, like all writes.
+	private Segment active;
+	
+	MappedStore(Path directory, long maxBytes, ValueCodec codec) {
+		this.directory = directory;
+		this.segmentSize = (int) Math.max(1 << 20, Math.min(64 << 20, maxBytes / 8));
+		this.maxSegments = (int) Math.max(2, maxBytes / segmentSize);
+		this.codec = codec;
+		try {
+			Files.createDirectories(directory);
+			load();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't open the store in " + directory, e);
+		}
+		MojangPipe.getThreadPool().scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.MINUTES);
+	}
+	
+	//=====================STATISTICS METHODS=====================//
+	//Like with Redis, the counters start over with every restart. Sizes include expired entries whose segment is still there.
+	@Override
+	public Cache.StoredStats readStats() {
+		Map<String, String> statsCopy = new HashMap<>();
+		stats.forEach((field, value) -> statsCopy.put(field, String.valueOf(value)));
+		Map<String, String> statusCodesCopy = new HashMap<>();
+		statusCodes.forEach((field, value) -> statusCodesCopy.put(field, String.valueOf(value)));
+		return new Cache.StoredStats(statsCopy, statusCodesCopy, index.sizes());
+	}
+	
+	@Override
+	public void incrStats(Map<String, Long> stats, Map<String, Long> statusCodes) {
+		stats.forEach((field, delta) -> this.stats.merge(field, delta, Long::sum));
+		statusCodes.forEach((field, delta) -> this.statusCodes.merge(field, delta, Long::sum));
+	}
+	
+	//=================NORMAL OPERATIONS METHODS=================//
+	//Everything is answered on the calling thread, there's nothing to wait for.
+	@Override
+	public CompletableFuture<Cache.Lookup> lookup(String identifier, int db, long time) {
+		NegativeCache.Answer known = NegativeCache.check(identifier, time);
+		if (known == NegativeCache.Answer.INVALID) {
+			return CompletableFuture.completedFuture(Cache.Lookup.INVALID);
+		}
+		LocalCache.Entry invalid = LocalCache.get(identifier, 5);
+		if (invalid != null && (time - invalid.getTime()) < Cache.lifetime(5)) {
+			return CompletableFuture.completedFuture(Cache.Lookup.INVALID);
+		}
+		LocalCache.Entry cached = LocalCache.get(identifier, db);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(Cache.Lookup.of(cached, time));
+		}
+		//The negative cache is filled from the store on startup, so it knows about every invalid identifier in here.
+		if (known != NegativeCache.Answer.ABSENT) {
+			ValueCodec.Value value = read(identifier, 5, time);
+			Cache.Lookup lookup = value == null ? null : Cache.invalid(identifier, value.getTime(), time);
+			if (lookup != null) {
+				return CompletableFuture.completedFuture(lookup);
+			}
+		}
+		ValueCodec.Value value = read(identifier, db, time);
+		if (value == null) {
+			return CompletableFuture.completedFuture(Cache.Lookup.MISS);
+		}
+		return CompletableFuture.completedFuture(Cache.Lookup.of(cache(identifier, db, value), time));
+	}
+	
+	@Override
+	public CompletableFuture<Cache.Lookup[]> lookupAll(List<String> identifiers, int db, long time) {
+		Cache.Lookup[] lookups = new Cache.Lookup[identifiers.size()];
+		for (int i = 0; i < lookups.length; i++) {
+			lookups[i] = lookup(identifiers.get(i), db, time).join();
+		}
+		return CompletableFuture.completedFuture(lookups);
+	}
+	
+	@Override
+	public CompletableFuture<LocalCache.Entry> get(String identifier, int db) {
+		LocalCache.Entry cached = LocalCache.get(identifier, db);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		ValueCodec.Value value = read(identifier, db, System.currentTimeMillis());
+		return CompletableFuture.completedFuture(value == null ? null : cache(identifier, db, value));
+	}
+	
+	private LocalCache.Entry cache(String identifier, int db, ValueCodec.Value value) {
+		String textures = value.getTextures() != null ? value.getTextures() : Cache.deriveTextures(db, value.getJson());
+		return LocalCache.put(identifier, db, value.getTime(), value.getJson(), textures, value.getJsonTag(), value.getTexturesTag());
+	}
+	
+	//An identifier with data isn't invalid (anymore).
+	@Override
+	public void put(String identifier, int db, LocalCache.Entry entry) {
+		byte[] value = codec.encode(entry.getTime(), entry.getJson(), entry.getTextures(), entry.getJsonTag(), entry.getTexturesTag());
+		append(db, identifier, entry.getTime() + Cache.lifetime(db), value);
+		removeInvalid(identifier);
+	}
+	
+	@Override
+	public void putInvalid(String identifier, long time) {
+		append(5, identifier, time + Cache.lifetime(5), codec.encode(time, "", null, null, null));
+	}
+	
+	//Only writes a tombstone if there's something to delete, this is called for every profile that's fetched.
+	@Override
+	public void removeInvalid(String identifier) {
+		byte[] key = identifier.getBytes(StandardCharsets.UTF_8);
+		if (index.get(hash(5, key)) != 0) {
+			byte[] keep = ByteBuffer.allocate(Long.BYTES).putLong(System.currentTimeMillis() + Cache.lifetime(5)).array();
+			append(5, identifier, TOMBSTONE, keep);
+		}
+	}
+	
+	//The value of a record that hasn't expired, null if there's none.
+	private ValueCodec.Value read(String identifier, int db, long now) {
+		byte[] key = identifier.getBytes(StandardCharsets.UTF_8);
+		long location = index.get(hash(db, key));
+		Segment segment = location == 0 ? null : segments.get((int) (location >>> 32));
+		if (segment == null) {
+			return null;
+		}
+		//Segments that were dropped meanwhile stay mapped (and readable) until they're garbage collected.
+		ByteBuffer record = segment.buffer.duplicate();
+		record.position((int) location);
+		int length = record.getInt();
+		record.getInt();
+		int recordDb = record.get();
+		long expires = record.getLong();
+		int keyLength = record.getShort();
+		if (recordDb != db || expires <= now || keyLength != key.length) {
+			return null;
+		}
+		for (byte b : key) {
+			if (record.get() != b) {
+				return null;
+			}
+		}
+		byte[] value = new byte[length - RECORD_HEADER - keyLength];
+		record.get(value);
+		return codec.decode(value);
+	}
+	
+	private synchronized void append(int db, String identifier, long expires, byte[] value) {
+		byte[] key = identifier.getBytes(StandardCharsets.UTF_8);
+		int length = RECORD_HEADER + key.length + value.length;
+		if (key.length > Short.MAX_VALUE || length > segmentSize - FILE_HEADER) {
+			return;
+		}
+		try {
+			if (active.position + length > active.buffer.capacity()) {
+				roll();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		int offset = active.position;
+		ByteBuffer record = active.buffer.duplicate();
+		record.position(offset);
+		record.putInt(length).putInt(0).put((byte) db).putLong(expires).putShort((short) key.length).put(key).put(value);
+		record.putInt(offset + 4, checksum(active.buffer, offset, length));
+		active.position += length;
+		active.maxExpires = Math.max(active.maxExpires, keptUntil(expires, ByteBuffer.wrap(value), 0, value.length));
+		long hash = hash(db, key);
+		if (expires == TOMBSTONE) {
+			index.remove(hash);
+		} else {
+			index.put(hash, (long) active.id << 32 | offset, db);
+		}
+	}
+	
+	private void roll() throws IOException {
+		while (segments.size() >= maxSegments) {
+			drop(segments.firstEntry().getValue());
+		}
+		active = open(active == null ? 1 : active.id + 1, true);
+	}
+	
+	//Deletes the segments all of whose records have expired.
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for (Segment segment : segments.values()) {
+			synchronized (this) {
+				if (segment != active && segment.maxExpires <= now) {
+					drop(segment);
+				}
+			}
+		}
+	}
+	
+	private void drop(Segment segment) {
+		segments.remove(segment.id);
+		index.removeSegment(segment.id);
+		try {
+			Files.deleteIfExists(segment.path);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private synchronized void load() throws IOException {
+		List<Integer> ids = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					ids.add(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					//Not one of ours.
+				}
+			}
+		}
+		ids.sort(null);
+		long now = System.currentTimeMillis();
+		for (int id : ids) {
+			Segment segment = open(id, false);
+			if (segment != null) {
+				scan(segment, now);
+				active = segment;
+			}
+		}
+		if (active == null) {
+			roll();
+		}
+		rememberInvalid();
+	}
+	
+	//The negative cache gets the invalid identifiers that are still in the index once all segments are replayed,
+	//a later record of the same key (a tombstone or an expired one) has taken it out of there already.
+	private void rememberInvalid() {
+		for (long location : index.locations(5)) {
+			ByteBuffer record = segments.get((int) (location >>> 32)).buffer.duplicate();
+			record.position((int) location);
+			int length = record.getInt();
+			record.position(record.position() + 4 + 1 + 8);
+			byte[] key = new byte[record.getShort()];
+			record.get(key);
+			byte[] value = new byte[length - RECORD_HEADER - key.length];
+			record.get(value);
+			NegativeCache.add(new String(key, StandardCharsets.UTF_8), codec.decode(value).getTime());
+		}
+	}
+	
+	//Replays the records of a segment into the index. A record that doesn't check out ends the segment, it's where
+	//the process was stopped mid-write, and the next record goes there.
+	private void scan(Segment segment, long now) {
+		ByteBuffer buffer = segment.buffer;
+		int offset = FILE_HEADER;
+		while (offset + RECORD_HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(offset);
+			if (length < RECORD_HEADER || offset + length > buffer.capacity() || buffer.getInt(offset + 4) != checksum(buffer, offset, length)) {
+				break;
+			}
+			int db = buffer.get(offset + 8);
+			long expires = buffer.getLong(offset + 9);
+			int keyLength = buffer.getShort(offset + 17);
+			if (db < 1 || db > 5 || keyLength < 0 || RECORD_HEADER + keyLength > length) {
+				break;
+			}
+			byte[] key = new byte[keyLength];
+			buffer.duplicate().position(offset + RECORD_HEADER).get(key);
+			long hash = hash(db, key);
+			if (expires == TOMBSTONE || expires <= now) {
+				index.remove(hash);
+			} else {
+				index.put(hash, (long) segment.id << 32 | offset, db);
+			}
+			segment.maxExpires = Math.max(segment.maxExpires, keptUntil(expires, buffer, offset + RECORD_HEADER + keyLength, length - RECORD_HEADER - keyLength));
+			offset += length;
+		}
+		segment.position = offset;
+	}
+	
+	//Until when the segment of a record has to be kept. Tombstones written before they had a value don't keep it at all.
+	private static long keptUntil(long expires, ByteBuffer buffer, int valueOffset, int valueLength) {
+		if (expires != TOMBSTONE) {
+			return expires;
+		}
+		return valueLength >= Long.BYTES ? buffer.getLong(valueOffset) : TOMBSTONE;
+	}
+	
+	//Null for an existing file that isn't a segment, it's left alone.
+	private Segment open(int id, boolean create) throws IOException {
+		Path path = directory.resolve(String.format("%010d", id) + SUFFIX);
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = create ? segmentSize : channel.size();
+			if (size < FILE_HEADER || size > Integer.MAX_VALUE) {
+				return null;
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		if (create) {
+			buffer.putInt(0, MAGIC);
+		} else if (buffer.getInt(0) != MAGIC) {
+			return null;
+		}
+		Segment segment = new Segment(id, path, buffer);
+		segment.position = FILE_HEADER;
+		segments.put(id, segment);
+		return segment;
+	}
+	
+	private static int checksum(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer checked = buffer.duplicate();
+		checked.limit(offset + length).position(offset + 8);
+		CRC32C crc = new CRC32C();
+		crc.update(checked);
+		return (int) crc.getValue();
+	}
+	
+	//0 marks an empty slot of the index.
+	private static long hash(int db, byte[] key) {
+		long hash = Utils.hash(key) ^ (db * 0x9e3779b97f4a7c15L);
+		return hash == 0 ? 1 : hash;
+	}
+	
+	long getMappedBytes() {
+		long bytes = 0;
+		for (Segment segment : segments.values()) {
+			bytes += segment.buffer.capacity();
+		}
+		return bytes;
+	}
+	
+	int getSegments() {
+		return segments.size();
+	}
+	
+	private static class Segment {
+		private final int id;
+		private final Path path;
+		private final MappedByteBuffer buffer;
+		//Where the next record goes, only used for the active segment.
+		private int position;
+		private volatile long maxExpires;
+		
+		Segment(int id, Path path, MappedByteBuffer buffer) {
+			this.id = id;
+			this.path = path;
+			this.buffer = buffer;
+		}
+	}
+	
+	//Open addressing table of key hash -> segment id and offset of the newest record of the key, with the record's db
+	//for the sizes. Two keys with the same hash share a slot, the other one's reads then just miss.
+	private static class Index {
+		private long[] hashes = new long[1024];
+		private long[] locations = new long[1024];
+		private byte[] dbs = new byte[1024];
+		private int size;
+		private final long[] sizes = new long[6];
+		
+		//The location, 0 if it's not in here.
+		synchronized long get(long hash) {
+			int mask = hashes.length - 1;
+			int slot = slot(hash, mask);
+			while (hashes[slot] != 0) {
+				if (hashes[slot] == hash) {
+					return locations[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			return 0;
+		}
+		
+		synchronized void put(long hash, long location, int db) {
+			if ((size + 1) * 2 > hashes.length) {
+				rebuild(hashes.length * 2, -1);
+			}
+			int mask = hashes.length - 1;
+			int slot = slot(hash, mask);
+			while (hashes[slot] != 0 && hashes[slot] != hash) {
+				slot = (slot + 1) & mask;
+			}
+			if (hashes[slot] == 0) {
+				size++;
+			} else {
+				sizes[dbs[slot]]--;
+			}
+			hashes[slot] = hash;
+			locations[slot] = location;
+			dbs[slot] = (byte) db;
+			sizes[db]++;
+		}
+		
+		//Backward shift deletion, so lookups never need tombstones.
+		synchronized void remove(long hash) {
+			int mask = hashes.length - 1;
+			int slot = slot(hash, mask);
+			while (hashes[slot] != hash) {
+				if (hashes[slot] == 0) {
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			size--;
+			sizes[dbs[slot]]--;
+			int hole = slot;
+			int next = (hole + 1) & mask;
+			while (hashes[next] != 0) {
+				int home = slot(hashes[next], mask);
+				//Moves the entry back into the hole unless its home slot lies (cyclically) after the hole.
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					hashes[hole] = hashes[next];
+					locations[hole] = locations[next];
+					dbs[hole] = dbs[next];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			hashes[hole] = 0;
+			locations[hole] = 0;
+		}
+		
+		//Drops every entry whose record is in the given segment.
+		synchronized void removeSegment(int segment) {
+			rebuild(hashes.length, segment);
+		}
+		
+		private void rebuild(int capacity, int droppedSegment) {
+			long[] oldHashes = hashes;
+			long[] oldLocations = locations;
+			byte[] oldDbs = dbs;
+			hashes = new long[capacity];
+			locations = new long[capacity];
+			dbs = new byte[capacity];
+			size = 0;
+			int mask = capacity - 1;
+			for (int i = 0; i < oldHashes.length; i++) {
+				if (oldHashes[i] == 0) {
+					continue;
+				}
+				if ((int) (oldLocations[i] >>> 32) == droppedSegment) {
+					sizes[oldDbs[i]]--;
+					continue;
+				}
+				int slot = slot(oldHashes[i], mask);
+				while (hashes[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				hashes[slot] = oldHashes[i];
+				locations[slot] = oldLocations[i];
+				dbs[slot] = oldDbs[i];
+				size++;
+			}
+		}
+		
+		private static int slot(long hash, int mask) {
+			return (int) (hash ^ (hash >>> 32)) & mask;
+		}
+		
+		synchronized long[] sizes() {
+			return sizes.clone();
+		}
+		
+		//The locations of all records of a db.
+		synchronized List<Long> locations(int db) {
+			List<Long> found = new ArrayList<>();
+			for (int i = 0; i < hashes.length; i++) {
+				if (hashes[i] != 0 && dbs[i] == db) {
+					found.add(locations[i]);
+				}
+			}
+			return found;
+		}
+	}
+}
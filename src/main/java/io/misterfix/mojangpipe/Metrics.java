@@ -0,0 +1,260 @@
+package io.misterfix.mojangpipe;
+
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//Request statistics kept in memory. Counters are flushed to Redis in batches (the "stats" and "statusCodes"
+//hashes /stats reads), latency histograms only live here and are exposed on /metrics.
+class Metrics {
+	private static final Map<String, Counter> stats = new ConcurrentHashMap<>();
+	private static final Map<String, Counter> statusCodes = new ConcurrentHashMap<>();
+	private static final Map<String, Histogram[]> routes = new ConcurrentHashMap<>();
+	
+	enum Source {
+		MEM, API, INVALID;
+		
+		private final String label = name().toLowerCase(Locale.ROOT);
+	}
+	
+	static void init(int flushSeconds) {
+		MojangPipe.getThreadPool().scheduleWithFixedDelay(Metrics::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+	}
+	
+	//Counts a served request under its legacy stats field, and its latency under its route and source.
+	static void served(String route, Source source, long startNanos) {
+		String stat;
+		switch (source) {
+			case MEM:
+				stat = route + "_from_mem";
+				break;
+			case API:
+				stat = route + "_from_api";
+				break;
+			default:
+				stat = "served_from_invalid_cache";
+		}
+		stats.computeIfAbsent(stat, key -> new Counter()).value.increment();
+		routes.computeIfAbsent(route, key -> new Histogram[]{new Histogram(), new Histogram(), new Histogram()})[source.ordinal()]
+				.observe(System.nanoTime() - startNanos);
+	}
+	
+	static void status(String statusMessage) {
+		statusCodes.computeIfAbsent(statusMessage, key -> new Counter()).value.increment();
+	}
+	
+	//Sends the counts since the last flush. If Redis can't be reached they're kept for the next one.
+	private static void flush() {
+		Map<String, Long> statsDeltas = deltas(stats);
+		Map<String, Long> statusDeltas = deltas(statusCodes);
+		if (statsDeltas.isEmpty() && statusDeltas.isEmpty()) {
+			return;
+		}
+		try {
+			Cache.incrStats(statsDeltas, statusDeltas);
+			commit(stats, statsDeltas);
+			commit(statusCodes, statusDeltas);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private static Map<String, Long> deltas(Map<String, Counter> counters) {
+		Map<String, Long> deltas = new LinkedHashMap<>();
+		counters.forEach((field, counter) -> {
+			long delta = counter.value.sum() - counter.flushed;
+			if (delta > 0) {
+				deltas.put(field, delta);
+			}
+		});
+		return deltas;
+	}
+	
+	private static void commit(Map<String, Counter> counters, Map<String, Long> deltas) {
+		deltas.forEach((field, delta) -> counters.get(field).flushed += delta);
+	}
+	
+	//=====================EXPOSITION=====================//
+	static String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+		out.append("# TYPE mojangpipe_served_total counter\n");
+		stats.forEach((field, counter) -> out.append("mojangpipe_served_total{stat=\"").append(field).append("\"} ").append(counter.value.sum()).append('\n'));
+		out.append("# TYPE mojangpipe_upstream_responses_total counter\n");
+		statusCodes.forEach((status, counter) -> out.append("mojangpipe_upstream_responses_total{status=\"").append(status).append("\"} ").append(counter.value.sum()).append('\n'));
+		
+		out.append("# TYPE mojangpipe_request_duration_seconds histogram\n");
+		routes.forEach((route, histograms) -> {
+			for (Source source : Source.values()) {
+				histograms[source.ordinal()].appendPrometheus(out, "mojangpipe_request_duration_seconds", "route=\"" + route + "\",source=\"" + source.label + "\"");
+			}
+		});
+		out.append("# TYPE mojangpipe_upstream_duration_seconds histogram\n");
+		for (ProxyScheduler.Egress egress : ProxyScheduler.getEgresses()) {
+			egress.getLatency().appendPrometheus(out, "mojangpipe_upstream_duration_seconds", "proxy=\"" + egress.getPort() + "\"");
+		}
+		
+		out.append("# TYPE mojangpipe_proxy_requests_total counter\n");
+		for (ProxyScheduler.Egress egress : ProxyScheduler.getEgresses()) {
+			out.append("mojangpipe_proxy_requests_total{proxy=\"").append(egress.getPort()).append("\"} ").append(egress.getRequests()).append('\n');
+		}
+		out.append("# TYPE mojangpipe_proxy_ratelimited_total counter\n");
+		for (ProxyScheduler.Egress egress : ProxyScheduler.getEgresses()) {
+			out.append("mojangpipe_proxy_ratelimited_total{proxy=\"").append(egress.getPort()).append("\"} ").append(egress.getRatelimited()).append('\n');
+		}
+		counter(out, "mojangpipe_local_cache_hits_total", LocalCache.getHits());
+		counter(out, "mojangpipe_local_cache_misses_total", LocalCache.getMisses());
+		gauge(out, "mojangpipe_local_cache_entries", LocalCache.size());
+		gauge(out, "mojangpipe_negative_cache_entries", NegativeCache.getEntries());
+		gauge(out, "mojangpipe_negative_cache_memory_bytes", NegativeCache.getMemoryBytes());
+		counter(out, "mojangpipe_negative_cache_checks_total", NegativeCache.getChecks());
+		counter(out, "mojangpipe_negative_cache_unconfirmed_total", NegativeCache.getFalsePositives());
+		gauge(out, "mojangpipe_negative_cache_expected_false_positive_rate", NegativeCache.getEstimatedFalsePositiveRate());
+		counter(out, "mojangpipe_texture_store_hits_total", TextureStore.getHits());
+		counter(out, "mojangpipe_texture_store_misses_total", TextureStore.getMisses());
+		counter(out, "mojangpipe_texture_store_evictions_total", TextureStore.getEvictions());
+		gauge(out, "mojangpipe_texture_store_entries", TextureStore.getEntries());
+		gauge(out, "mojangpipe_texture_store_bytes", TextureStore.getUsedBytes());
+		gauge(out, "mojangpipe_in_flight_requests", SingleFlight.getInFlight());
+		counter(out, "mojangpipe_coalesced_requests_total", SingleFlight.getCoalesced());
+		counter(out, "mojangpipe_cluster_leases_total", Cluster.getLeased());
+		counter(out, "mojangpipe_cluster_lease_waits_total", Cluster.getWaited());
+		counter(out, "mojangpipe_cluster_lease_timeouts_total", Cluster.getTimeouts());
+		counter(out, "mojangpipe_cluster_token_claims_total", Cluster.getClaims());
+		counter(out, "mojangpipe_cluster_token_claims_failed_total", Cluster.getClaimsFailed());
+		counter(out, "mojangpipe_proxy_exhausted_total", ProxyScheduler.getExhausted());
+		counter(out, "mojangpipe_proxy_refused_total", ProxyScheduler.getRefused());
+		gauge(out, "mojangpipe_queued_upstream_calls", Upstream.getQueuedCalls());
+		counter(out, "mojangpipe_upstream_retries_total", Upstream.getRetries());
+		counter(out, "mojangpipe_upstream_hedges_total", Upstream.getHedges());
+		counter(out, "mojangpipe_stale_served_total", Refresher.getStale());
+		gauge(out, "mojangpipe_admission_running", Admission.getRunning());
+		gauge(out, "mojangpipe_admission_queued", Admission.getQueued());
+		gauge(out, "mojangpipe_admission_following", Admission.getFollowing());
+		counter(out, "mojangpipe_admission_shed_total", Admission.getShed());
+		counter(out, "mojangpipe_access_log_written_total", AccessLog.getWritten());
+		counter(out, "mojangpipe_access_log_dropped_total", AccessLog.getDropped());
+		counter(out, "mojangpipe_access_log_rate_limited_total", AccessLog.getRateLimited());
+		return out.toString();
+	}
+	
+	private static void counter(StringBuilder out, String name, long value) {
+		out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+	}
+	
+	private static void gauge(StringBuilder out, String name, long value) {
+		out.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+	}
+	
+	private static void gauge(StringBuilder out, String name, double value) {
+		out.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+	}
+	
+	static String toJson() {
+		JSONObject json = new JSONObject();
+		JSONObject served = new JSONObject();
+		stats.forEach((field, counter) -> served.put(field, counter.value.sum()));
+		json.put("served", served);
+		JSONObject upstreamResponses = new JSONObject();
+		statusCodes.forEach((status, counter) -> upstreamResponses.put(status, counter.value.sum()));
+		json.put("upstreamResponses", upstreamResponses);
+		
+		JSONObject latency = new JSONObject();
+		routes.forEach((route, histograms) -> {
+			JSONObject sources = new JSONObject();
+			for (Source source : Source.values()) {
+				sources.put(source.label, histograms[source.ordinal()].toJson());
+			}
+			latency.put(route, sources);
+		});
+		json.put("requestLatency", latency);
+		JSONObject proxies = new JSONObject();
+		for (ProxyScheduler.Egress egress : ProxyScheduler.getEgresses()) {
+			proxies.put(String.valueOf(egress.getPort()), egress.getLatency().toJson()
+					.put("requests", egress.getRequests())
+					.put("ratelimited", egress.getRatelimited())
+					.put("errors", egress.getErrors()));
+		}
+		json.put("proxies", proxies);
+		return json.toString();
+	}
+	
+	private static class Counter {
+		private final LongAdder value = new LongAdder();
+		//Only touched by the flush task.
+		private long flushed;
+	}
+	
+	//Fixed bucket latency histogram, recording is lock-free.
+	static class Histogram {
+		private static final double[] BOUNDS_MILLIS = {1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+		private static final long[] BOUNDS_NANOS = new long[BOUNDS_MILLIS.length];
+		private final LongAdder[] buckets = new LongAdder[BOUNDS_MILLIS.length + 1];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sumNanos = new LongAdder();
+		
+		static {
+			for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+				BOUNDS_NANOS[i] = (long) (BOUNDS_MILLIS[i] * 1e6);
+			}
+		}
+		
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+		
+		void observe(long nanos) {
+			int bucket = 0;
+			while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+				bucket++;
+			}
+			buckets[bucket].increment();
+			count.increment();
+			sumNanos.add(nanos);
+		}
+		
+		//Upper bound of the bucket the quantile falls in, in milliseconds (the largest bound if it's past all of them).
+		double quantileMillis(double quantile) {
+			long total = count.sum();
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(total * quantile);
+			long seen = 0;
+			for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+				seen += buckets[i].sum();
+				if (seen >= rank) {
+					return BOUNDS_MILLIS[i];
+				}
+			}
+			return BOUNDS_MILLIS[BOUNDS_MILLIS.length - 1];
+		}
+		
+		private void appendPrometheus(StringBuilder out, String name, String labels) {
+			long cumulative = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				cumulative += buckets[i].sum();
+				String le = i < BOUNDS_MILLIS.length ? String.valueOf(BOUNDS_MILLIS[i] / 1000) : "+Inf";
+				out.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+			}
+			out.append(name).append("_sum{").append(labels).append("} ").append(sumNanos.sum() / 1e9).append('\n');
+			out.append(name).append("_count{").append(labels).append("} ").append(count.sum()).append('\n');
+		}
+		
+		private JSONObject toJson() {
+			long total = count.sum();
+			return new JSONObject()
+					.put("count", total)
+					.put("meanMillis", total == 0 ? 0 : sumNanos.sum() / 1e6 / total)
+					.put("p50Millis", quantileMillis(0.5))
+					.put("p95Millis", quantileMillis(0.95))
+					.put("p99Millis", quantileMillis(0.99));
+		}
+	}
+}
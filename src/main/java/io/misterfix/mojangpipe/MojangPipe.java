@@ -2,34 +2,35 @@ package io.misterfix.mojangpipe;
 
 import io.lettuce.core.ClientOptions;
 import io.lettuce.core.RedisClient;
-import io.lettuce.core.api.StatefulRedisConnection;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-import okhttp3.ResponseBody;
 import org.json.JSONObject;
 import spark.Spark;
 
-import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static spark.Spark.halt;
 
 public class MojangPipe {
 	private static long startTime;
-	private static OkHttpClient client;
 	private static final ScheduledExecutorService threadPool = Executors.newScheduledThreadPool(8);
 	private static int cacheLifetime = 0;
 	private static int invalidLifetime = 0;
-	private static final String API_URL = "https://api.mojang.com/users/profiles/minecraft/";
-	private static final String SESSION_URL = "https://sessionserver.mojang.com/session/minecraft/profile/";
+	private static int staleLifetime = 0;
+	private static boolean async;
+	//Only pointed elsewhere to run against a mock of Mojang, see the load test.
+	private static String sessionServer = "https://sessionserver.mojang.com";
+	private static String mojangApi = "https://api.mojang.com";
 	
 	public static void main(String[] args) {
 		startTime = System.currentTimeMillis();
@@ -38,22 +39,94 @@ public class MojangPipe {
 		OptionSpec<Integer> optPort = curParser.accepts("port").withRequiredArg().ofType(Integer.class).defaultsTo(2580);
 		OptionSpec<Integer> optCacheLifetime = curParser.accepts("cacheLifetime").withRequiredArg().ofType(Integer.class).defaultsTo(30);
 		OptionSpec<Integer> optInvalidLifetime = curParser.accepts("invalidProfileLifetime").withRequiredArg().ofType(Integer.class).defaultsTo(240);
+		OptionSpec<Integer> optStaleLifetime = curParser.accepts("staleLifetime").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		OptionSpec<Integer> optRefreshRate = curParser.accepts("refreshRate").withRequiredArg().ofType(Integer.class).defaultsTo(10);
+		OptionSpec<Integer> optRefreshConcurrency = curParser.accepts("refreshConcurrency").withRequiredArg().ofType(Integer.class).defaultsTo(4);
 		OptionSpec<String> optRedisHost = curParser.accepts("redisHost").withRequiredArg().ofType(String.class);
 		OptionSpec<Integer> optRedisPort = curParser.accepts("redisPort").withRequiredArg().ofType(Integer.class).defaultsTo(6379);
 		OptionSpec<String> optRedisPass = curParser.accepts("redisPass").withRequiredArg().ofType(String.class).defaultsTo("P4azzw0rd");
+		OptionSpec<Integer> optRedisConnections = curParser.accepts("redisConnections").withRequiredArg().ofType(Integer.class).defaultsTo(Runtime.getRuntime().availableProcessors());
+		OptionSpec<Void> optRedisExclusive = curParser.accepts("redisExclusiveConnections");
+		OptionSpec<Void> optUnifiedKeyspace = curParser.accepts("unifiedKeyspace");
+		OptionSpec<String> optEmbeddedStore = curParser.accepts("embeddedStore").withRequiredArg().ofType(String.class);
+		OptionSpec<Integer> optEmbeddedStoreSize = curParser.accepts("embeddedStoreSize").withRequiredArg().ofType(Integer.class).defaultsTo(1024);
+		OptionSpec<String> optTextureCache = curParser.accepts("textureCache").withRequiredArg().ofType(String.class);
+		OptionSpec<Integer> optTextureCacheSize = curParser.accepts("textureCacheSize").withRequiredArg().ofType(Integer.class).defaultsTo(1024);
+		OptionSpec<String> optTextureServer = curParser.accepts("textureServer").withRequiredArg().ofType(String.class).defaultsTo("http://textures.minecraft.net");
+		OptionSpec<String> optValueCodec = curParser.accepts("valueCodec").withRequiredArg().ofType(String.class).defaultsTo("json");
+		OptionSpec<Void> optAsync = curParser.accepts("async");
+		OptionSpec<Integer> optUpstreamConcurrency = curParser.accepts("upstreamConcurrency").withRequiredArg().ofType(Integer.class).defaultsTo(64);
+		OptionSpec<Integer> optUpstreamRetries = curParser.accepts("upstreamRetries").withRequiredArg().ofType(Integer.class).defaultsTo(2);
+		OptionSpec<Integer> optUpstreamRetryBudget = curParser.accepts("upstreamRetryBudget").withRequiredArg().ofType(Integer.class).defaultsTo(3000);
+		OptionSpec<Void> optHedge = curParser.accepts("hedge");
+		OptionSpec<String> optSessionServer = curParser.accepts("sessionServer").withRequiredArg().ofType(String.class).defaultsTo(sessionServer);
+		OptionSpec<String> optMojangApi = curParser.accepts("mojangApi").withRequiredArg().ofType(String.class).defaultsTo(mojangApi);
+		OptionSpec<Integer> optProxyPorts = curParser.accepts("proxyPorts").withRequiredArg().ofType(Integer.class).withValuesSeparatedBy(',').defaultsTo(3129, 3130, 3131, 3132, 3133, 3134, 3135, 3136);
+		OptionSpec<Integer> optProxyRateLimit = curParser.accepts("proxyRateLimit").withRequiredArg().ofType(Integer.class).defaultsTo(600);
+		OptionSpec<Integer> optProxyQuarantine = curParser.accepts("proxyQuarantine").withRequiredArg().ofType(Integer.class).defaultsTo(60);
+		OptionSpec<Integer> optProxyWait = curParser.accepts("proxyWait").withRequiredArg().ofType(Integer.class).defaultsTo(1000);
+		OptionSpec<Integer> optNameBatchWindow = curParser.accepts("nameBatchWindow").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		OptionSpec<Void> optCluster = curParser.accepts("cluster");
+		OptionSpec<Integer> optClusterLease = curParser.accepts("clusterLease").withRequiredArg().ofType(Integer.class).defaultsTo(10000);
+		OptionSpec<Integer> optCoalesceTimeout = curParser.accepts("coalesceTimeout").withRequiredArg().ofType(Integer.class).defaultsTo(10000);
+		OptionSpec<Integer> optAdmissionConcurrency = curParser.accepts("admissionConcurrency").withRequiredArg().ofType(Integer.class).defaultsTo(64);
+		OptionSpec<Integer> optAdmissionQueue = curParser.accepts("admissionQueue").withRequiredArg().ofType(Integer.class).defaultsTo(64);
+		OptionSpec<Integer> optAdmissionWait = curParser.accepts("admissionWait").withRequiredArg().ofType(Integer.class).defaultsTo(1000);
+		OptionSpec<Integer> optBulkConcurrency = curParser.accepts("bulkConcurrency").withRequiredArg().ofType(Integer.class).defaultsTo(8);
+		OptionSpec<String> optAccessLog = curParser.accepts("accessLog").withRequiredArg().ofType(String.class).defaultsTo("-");
+		OptionSpec<Integer> optAccessLogBuffer = curParser.accepts("accessLogBuffer").withRequiredArg().ofType(Integer.class).defaultsTo(8192);
+		OptionSpec<Double> optAccessLogSample = curParser.accepts("accessLogSample").withRequiredArg().ofType(Double.class).defaultsTo(1.0);
+		OptionSpec<Integer> optAccessLogRateLimit = curParser.accepts("accessLogRateLimit").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		OptionSpec<Integer> optMetricsFlushInterval = curParser.accepts("metricsFlushInterval").withRequiredArg().ofType(Integer.class).defaultsTo(5);
+		OptionSpec<Integer> optStatsInterval = curParser.accepts("statsInterval").withRequiredArg().ofType(Integer.class).defaultsTo(10);
+		OptionSpec<Integer> optLocalCacheEntries = curParser.accepts("localCacheEntries").withRequiredArg().ofType(Integer.class).defaultsTo(50000);
+		OptionSpec<Integer> optLocalCacheMemory = curParser.accepts("localCacheMemory").withRequiredArg().ofType(Integer.class).defaultsTo(64);
+		OptionSpec<Integer> optNegativeCacheSize = curParser.accepts("negativeCacheSize").withRequiredArg().ofType(Integer.class).defaultsTo(1000000);
 		OptionSet options = curParser.parse(args);
-		cacheLifetime = options.valueOf(optCacheLifetime);
-		invalidLifetime = options.valueOf(optInvalidLifetime);
+		setLifetimes(options.valueOf(optCacheLifetime), options.valueOf(optStaleLifetime), options.valueOf(optInvalidLifetime));
+		async = options.has(optAsync);
+		sessionServer = options.valueOf(optSessionServer).replaceAll("/+$", "");
+		mojangApi = options.valueOf(optMojangApi).replaceAll("/+$", "");
+		NameBatcher.init(options.valueOf(optNameBatchWindow));
+		SingleFlight.init(options.valueOf(optCoalesceTimeout));
+		LocalCache.init(options.valueOf(optLocalCacheEntries), options.valueOf(optLocalCacheMemory) * 1024L * 1024L);
+		NegativeCache.init(options.valueOf(optNegativeCacheSize));
 		
-		for (int i = 0; i <= 5; i++) {
-			RedisClient redisClient = RedisClient.create("redis://" + options.valueOf(optRedisPass) + "@" + options.valueOf(optRedisHost) + ":" + options.valueOf(optRedisPort) + "/" + i);
+		ValueCodec valueCodec = ValueCodec.forName(options.valueOf(optValueCodec));
+		if (options.has(optEmbeddedStore)) {
+			if (options.has(optCluster)) {
+				System.err.println("--cluster needs the nodes to share a Redis server, it can't be used with --embeddedStore");
+				System.exit(1);
+			}
+			//Single node mode, no Redis involved at all.
+			Cache.init(new MappedStore(Paths.get(options.valueOf(optEmbeddedStore)), options.valueOf(optEmbeddedStoreSize) * 1024L * 1024L,
+					valueCodec != null ? valueCodec : ValueCodec.forName("binary")));
+		} else {
+			RedisClient redisClient = RedisClient.create();
 			redisClient.setOptions(ClientOptions.builder().autoReconnect(true).build());
-			StatefulRedisConnection<String, String> connection = redisClient.connect();
-			new WrappedRedis(connection.sync()).close();
+			String redisUri = "redis://" + options.valueOf(optRedisPass) + "@" + options.valueOf(optRedisHost) + ":" + options.valueOf(optRedisPort);
+			WrappedRedis.init(redisClient, redisUri, options.valueOf(optRedisConnections), options.has(optRedisExclusive) && !async, valueCodec != null);
+			Cache.init(new Redis(options.has(optUnifiedKeyspace), valueCodec, options.has(optCluster)));
+			if (options.has(optCluster)) {
+				Cluster.init(redisClient, redisUri, options.valueOf(optClusterLease));
+			}
 		}
-		Redis.init();
-		client = Utils.getClient();
+		Upstream.init(options.valueOf(optUpstreamConcurrency), options.valueOf(optUpstreamRetries), options.valueOf(optUpstreamRetryBudget), options.has(optHedge) && async);
+		//Squid sends requests through a different ext. IP address depending on the port it was connected to.
+		//Mojang's rate limit is 600 requests per 10 minutes per IP.
+		ProxyScheduler.init(Upstream.getBaseClient(), options.valuesOf(optProxyPorts), options.valueOf(optProxyRateLimit), options.valueOf(optProxyQuarantine), options.valueOf(optProxyWait));
+		Refresher.init(options.valueOf(optRefreshRate), options.valueOf(optRefreshConcurrency));
+		if (options.has(optTextureCache)) {
+			TextureStore.init(Paths.get(options.valueOf(optTextureCache)), options.valueOf(optTextureCacheSize) * 1024L * 1024L,
+					options.valueOf(optTextureServer).replaceAll("/+$", ""));
+		}
+		Metrics.init(options.valueOf(optMetricsFlushInterval));
+		StatsSnapshot.init(options.valueOf(optStatsInterval));
+		AccessLog.init(options.valueOf(optAccessLog), options.valueOf(optAccessLogBuffer), options.valueOf(optAccessLogSample), options.valueOf(optAccessLogRateLimit));
 		
+		Admission.init(options.valueOf(optAdmissionConcurrency), options.valueOf(optAdmissionQueue), options.valueOf(optAdmissionWait));
+		Bulk.init(options.valueOf(optBulkConcurrency));
+		AsyncRoutes.init();
 		Spark.port(options.valueOf(optPort));
 		Spark.threadPool(300, 20, 10000);
 		Spark.get("/sessionserver/*", (request, response) -> {
@@ -69,121 +142,35 @@ public class MojangPipe {
 				halt(400);
 			}
 			
-			long time = System.currentTimeMillis();
 			boolean texturesOnly = route.length == 2 && route[1].equalsIgnoreCase("textures");
-			String json = "";
-			
-			Ratelimit.checkAndAdd(uuid);
-			if ((time - Redis.getLastRequest(uuid, 5)) < (invalidLifetime * 60000)) {
-				Redis.incrStats("served_from_invalid_cache");
-				System.out.println("Served profile for UUID " + uuid + " (from invalid requests cache)");
-				response.status(204);
-			} else if ((time - Redis.getLastRequest(uuid, 1)) < (cacheLifetime * 60000)) {
-				json = Redis.getJson(uuid, 1);
-				Redis.incrStats("profile_from_mem");
-				System.out.println("Served profile for UUID " + uuid + " (from memory)");
-			} else {
-				Request apiRequest = new Request.Builder().url(SESSION_URL + uuid).build();
-				Response apiResponse = client.newCall(apiRequest).execute();
-				int responseCode = apiResponse.code();
-				ResponseBody body = apiResponse.body();
-				
-				Redis.incrStats("profile_from_api");
-				Redis.logStatusMessage(responseCode + " " + apiResponse.message());
-				System.out.println("Served profile for UUID " + uuid + " (" + responseCode + ")");
-				if (body != null && responseCode == 200) {
-					json = body.string();
-					Redis.putJson(uuid, time, json, 1);
-				} else {
-					Redis.handleStatusCode(responseCode, uuid);
-					response.status(responseCode);
-				}
-				apiResponse.close();
-			}
+			CompletableFuture<String> json = serve(request, response, uuid, 1, texturesOnly, "profile",
+					() -> fetchProfile(uuid));
 			
-			Ratelimit.remove(uuid);
 			response.type("Application/json");
-			if (texturesOnly && !json.isEmpty()) {
-				return Utils.getTextures(json);
-			} else {
-				return json;
-			}
+			return AsyncRoutes.respond(request, response, json);
 		});
 		Spark.get("/api/name/:name", (request, response) -> {
-			String name = request.params(":name");
+			//Names are case insensitive, they're cached lower-cased so every spelling shares the same entry.
+			String name = request.params(":name").toLowerCase(Locale.ROOT);
 			if (name.length() > 17) {
 				halt(400);
 			}
-			long time = System.currentTimeMillis();
-			String json = "";
-			
-			if ((time - Redis.getLastRequest(name, 5)) < (invalidLifetime * 60000)) {
-				Redis.incrStats("served_from_invalid_cache");
-				System.out.println("Served UUID lookup for username " + name + " (from invalid requests cache)");
-				halt(204);
-			} else if ((time - Redis.getLastRequest(name, 2)) < (cacheLifetime * 60000)) {
-				json = Redis.getJson(name, 2);
-				Redis.incrStats("uuid_from_mem");
-				System.out.println("Served UUID lookup for username " + name + " (from memory)");
-			} else {
-				Request apiRequest = new Request.Builder().url(API_URL + name).build();
-				Response apiResponse = client.newCall(apiRequest).execute();
-				int responseCode = apiResponse.code();
-				ResponseBody body = apiResponse.body();
-				
-				Redis.incrStats("uuid_from_api");
-				Redis.logStatusMessage(responseCode + " " + apiResponse.message());
-				System.out.println("Served UUID lookup for username " + name + " (" + responseCode + ")");
-				if (body != null && responseCode == 200) {
-					json = body.string();
-					Redis.putJson(name, time, json, 2);
-				} else {
-					Redis.handleStatusCode(responseCode, name);
-					response.status(responseCode);
-				}
-				apiResponse.close();
-			}
+			CompletableFuture<String> json = serve(request, response, name, 2, false, "uuid",
+					() -> NameBatcher.fetch(name));
 			
 			response.type("Application/json");
-			return json;
+			return AsyncRoutes.respond(request, response, json);
 		});
 		Spark.get("/api/names/:uuid", (request, response) -> {
 			String uuid = request.params(":uuid");
 			if (uuid.length() != 32) {
 				halt(400);
 			}
-			long time = System.currentTimeMillis();
-			String json = "";
-			
-			if ((time - Redis.getLastRequest(uuid, 5)) < (invalidLifetime * 60000)) {
-				Redis.incrStats("served_from_invalid_cache");
-				System.out.println("Served names list for UUID " + uuid + " (from invalid requests cache)");
-				halt(204);
-			} else if ((time - Redis.getLastRequest(uuid, 3)) < (cacheLifetime * 60000)) {
-				json = Redis.getJson(uuid, 3);
-				Redis.incrStats("names_from_mem");
-				System.out.println("Served names list for UUID " + uuid + " (from memory)");
-			} else {
-				Request apiRequest = new Request.Builder().url("https://api.mojang.com/user/profiles/" + uuid + "/names").build();
-				Response apiResponse = client.newCall(apiRequest).execute();
-				int responseCode = apiResponse.code();
-				ResponseBody body = apiResponse.body();
-				
-				Redis.incrStats("names_from_api");
-				Redis.logStatusMessage(responseCode + " " + apiResponse.message());
-				System.out.println("Served names list for UUID " + uuid + " (" + responseCode + ")");
-				if (body != null && responseCode == 200) {
-					json = body.string();
-					Redis.putJson(uuid, time, json, 3);
-				} else {
-					Redis.handleStatusCode(responseCode, uuid);
-					response.status(responseCode);
-				}
-				apiResponse.close();
-			}
+			CompletableFuture<String> json = serve(request, response, uuid, 3, false, "names",
+					() -> Upstream.fetch(mojangApi + "/user/profiles/" + uuid + "/names", uuid, 3));
 			
 			response.type("Application/json");
-			return json;
+			return AsyncRoutes.respond(request, response, json);
 		});
 		Spark.get("/pipe/profile/*", (request, response) -> {
 			if (request.splat().length == 0) {
@@ -193,84 +180,88 @@ public class MojangPipe {
 			if (route.length < 1) {
 				halt(400);
 			}
-			String name = route[0];
+			String name = route[0].toLowerCase(Locale.ROOT);
 			if (name.length() > 17) {
 				halt(400);
 			}
 			
-			long time = System.currentTimeMillis();
 			boolean texturesOnly = route.length == 2 && route[1].equalsIgnoreCase("textures");
-			String json = "";
-			
-			Ratelimit.checkAndAdd(name);
-			if ((time - Redis.getLastRequest(name, 5)) < (invalidLifetime * 60000)) {
-				Redis.incrStats("served_from_invalid_cache");
-				System.out.println("Served profile for name " + name + " (from invalid requests cache)");
-				response.status(204);
-			} else if ((time - Redis.getLastRequest(name, 4)) < (cacheLifetime * 60000)) {
-				json = Redis.getJson(name, 4);
-				Redis.incrStats("name_profile_from_mem");
-				System.out.println("Served profile for name " + name + " (from memory)");
-			} else {
-				Request apiRequest = new Request.Builder().url(API_URL + name).build();
-				Response apiResponse = client.newCall(apiRequest).execute();
-				ResponseBody apiBody = apiResponse.body();
-				int apiResponseCode = apiResponse.code();
-				
-				Redis.logStatusMessage(apiResponseCode + " " + apiResponse.message());
-				if (apiBody != null && apiResponseCode == 200) {
-					String responseString = apiBody.string();
-					String uuid = new JSONObject(responseString).getString("id");
-					
-					Ratelimit.add(uuid);
-					Redis.putJson(name, time, responseString, 2);
-					
-					if ((time - Redis.getLastRequest(uuid, 1)) < (cacheLifetime * 60000)) {
-						json = Redis.getJson(uuid, 1);
-						Redis.putJson(name, time, json, 4);
-						Redis.incrStats("uuid_from_mem");
-						System.out.println("Served profile for name " + name + " (partly from memory)");
-					} else {
-						Request sessionRequest = new Request.Builder().url(SESSION_URL + uuid).build();
-						Response sessionResponse = client.newCall(sessionRequest).execute();
-						int responseCode = sessionResponse.code();
-						ResponseBody sessionBody = sessionResponse.body();
-						
-						Redis.incrStats("name_profile_from_api");
-						Redis.logStatusMessage(sessionResponse.code() + " " + sessionResponse.message());
-						System.out.println("Served profile for name " + name + " (" + responseCode + ")");
-						if (sessionBody != null && responseCode == 200) {
-							json = sessionBody.string();
-							Redis.putJson(name, time, json, 4);
-							Redis.putJson(uuid, time, json, 1);
-						} else {
-							Redis.handleStatusCode(apiResponseCode, name);
-							Redis.handleStatusCode(apiResponseCode, uuid);
-							response.status(responseCode);
-						}
-						sessionResponse.close();
-					}
-					Ratelimit.remove(uuid);
-				} else {
-					Redis.handleStatusCode(apiResponseCode, name);
-					System.out.println("Served profile for name " + name + " (" + apiResponse.code() + ")");
-				}
-				apiResponse.close();
-			}
+			CompletableFuture<String> json = serve(request, response, name, 4, texturesOnly, "name_profile",
+					() -> fetchNameProfile(name));
 			
-			Ratelimit.remove(name);
 			response.type("Application/json");
-			if (texturesOnly && !json.isEmpty()) {
-				return Utils.getTextures(json);
-			} else {
-				return json;
+			return AsyncRoutes.respond(request, response, json);
+		});
+		if (TextureStore.isEnabled()) {
+			//The hash is the last part of the skin and cape URLs in profiles.
+			Spark.get("/texture/:hash", (request, response) -> {
+				String hash = request.params(":hash").toLowerCase(Locale.ROOT);
+				if (!TextureStore.isHash(hash)) {
+					halt(400);
+				}
+				return AsyncRoutes.stream(request, response, out -> TextureStore.serve(request, response, hash, out));
+			});
+		}
+		Spark.post("/bulk/profiles", Bulk::handle);
+		Spark.get("/metrics", (request, response) -> {
+			String accept = request.headers("Accept");
+			if ("json".equals(request.queryParams("format")) || (accept != null && accept.contains("application/json"))) {
+				response.type("application/json");
+				return Metrics.toJson();
 			}
+			response.type("text/plain; version=0.0.4");
+			return Metrics.toPrometheus();
 		});
 		Spark.get("/stats", (request, response) -> {
+			StatsSnapshot stats = StatsSnapshot.get();
+			if ("json".equals(request.queryParams("format"))) {
+				response.type("application/json");
+				return stats.toJson()
+						.put("startTime", startTime)
+						.put("healthyProxies", ProxyScheduler.getHealthyCount())
+						.put("queuedApiRequests", Upstream.getQueuedCalls())
+						.put("requestsInProgress", SingleFlight.getInFlight())
+						.put("admission", new JSONObject()
+								.put("running", Admission.getRunning())
+								.put("queued", Admission.getQueued())
+								.put("following", Admission.getFollowing())
+								.put("admitted", Admission.getAdmitted())
+								.put("shed", Admission.getShed())
+								.put("timedOut", Admission.getTimedOut()))
+						.put("negativeCache", new JSONObject()
+								.put("entries", NegativeCache.getEntries())
+								.put("memoryBytes", NegativeCache.getMemoryBytes())
+								.put("estimatedFalsePositiveRate", NegativeCache.getEstimatedFalsePositiveRate())
+								.put("checks", NegativeCache.getChecks())
+								.put("notInvalid", NegativeCache.getNegatives())
+								.put("invalid", NegativeCache.getConfirmed())
+								.put("unconfirmed", NegativeCache.getFalsePositives()))
+						.put("accessLog", new JSONObject()
+								.put("written", AccessLog.getWritten())
+								.put("dropped", AccessLog.getDropped())
+								.put("rateLimited", AccessLog.getRateLimited()))
+						.put("usedMemory", Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())
+						.toString();
+			}
+			DecimalFormat percentage = new DecimalFormat("0.###");
+			StringBuilder windows = new StringBuilder();
+			for (int i = 0; i < StatsSnapshot.WINDOW_MINUTES.length; i++) {
+				windows.append("<tr><td>Last ").append(StatsSnapshot.WINDOW_MINUTES[i]).append(" min hit ratio / 429 rate</td><td> ")
+						.append(percentage.format(stats.getHitRatio(i))).append("% / ")
+						.append(percentage.format(stats.getRatelimitRate(i))).append("%</td></tr>\n");
+			}
 			StringBuilder responseCodeBreakdown = new StringBuilder();
-			try (WrappedRedis redis = WrappedRedis.get(0)) {
-			    redis.get().hgetall("statusCodes").forEach((code, count) -> responseCodeBreakdown.append("<tr><td>").append(code).append(":</td><td> ").append(count).append("</td></tr>\n"));
-            }
+			stats.getStatusCodes().forEach((code, count) -> responseCodeBreakdown.append("<tr><td>").append(code).append(":</td><td> ").append(count).append("</td></tr>\n"));
+			StringBuilder proxyBreakdown = new StringBuilder();
+			long now = System.nanoTime();
+			for (ProxyScheduler.Egress egress : ProxyScheduler.getEgresses()) {
+				proxyBreakdown.append("<tr><td>").append(egress.getPort()).append(egress.isQuarantined(now) ? " (quarantined)" : "")
+						.append(":</td><td> ").append(egress.getRequests()).append(" requests, ")
+						.append(egress.getRatelimited()).append(" 429s, ").append(egress.getErrors()).append(" errors, ")
+						.append(egress.getQuarantines()).append(" quarantines, ").append(egress.getTokens()).append(" tokens, ")
+						.append(new DecimalFormat("0.##").format(egress.getScore())).append(" score, ")
+						.append(Math.round(egress.getLatencyMillis())).append("ms</td></tr>\n");
+			}
 			//noinspection ConstantConditions
 			return "<html>\n" +
 					"    <head>\n" +
@@ -280,29 +271,54 @@ public class MojangPipe {
 					"        <table>\n" +
 					"            <tr><td>Current Time</td><td> " + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date()) + "</td></tr>\n" +
 					"            <tr><td>Time started</td><td> " + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(startTime)) + "</td></tr>\n" +
-					"            <tr><td>429 hit rate</td><td> " + Redis.get429Percentage() + "%</td></tr>\n" +
-					"            <tr><td>Proxy in rotation</td><td> " + ((InetSocketAddress) client.proxy().address()).getPort() + "</td></tr>\n" +
-					"            <tr><td>Requests in progress</td><td> " + Ratelimit.getRequestsInProgress() + "</td></tr>\n" +
+					"            <tr><td>Stats as of</td><td> " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(stats.getTime())) + "</td></tr>\n" +
+					"            <tr><td>429 hit rate</td><td> " + percentage.format(stats.get429Percentage()) + "%</td></tr>\n" +
+					windows +
+					"            <tr><td>Healthy proxies</td><td> " + ProxyScheduler.getHealthyCount() + "/" + ProxyScheduler.getEgresses().length + " (" + ProxyScheduler.getExhausted() + " times all busy, " + ProxyScheduler.getRefused() + " turned away)</td></tr>\n" +
+					"            <tr><td>Queued API requests</td><td> " + Upstream.getQueuedCalls() + "</td></tr>\n" +
+					"            <tr><td>Admitted cache misses</td><td> " + Admission.getRunning() + " running, " + Admission.getQueued() + " queued, " + Admission.getFollowing() + " waiting on another's fetch (" + Admission.getShed() + " turned away, " + Admission.getTimedOut() + " after waiting)</td></tr>\n" +
+					"            <tr><td>Stale responses served</td><td> " + Refresher.getStale() + " (" + Refresher.getRefreshes() + " refreshed, " + Refresher.getQueued() + " queued, " + Refresher.getDropped() + " dropped)</td></tr>\n" +
+					"            <tr><td>Retried API requests</td><td> " + Upstream.getRetries() + "</td></tr>\n" +
+					"            <tr><td>Hedged API requests</td><td> " + Upstream.getHedges() + " (" + Upstream.getHedgesWon() + " won, p95 " + Upstream.getP95Millis() + "ms)</td></tr>\n" +
+					"            <tr><td>API connections opened</td><td> " + Upstream.getConnectionsOpened() + " (" + Upstream.getTlsHandshakes() + " TLS handshakes)</td></tr>\n" +
+					"            <tr><td>API connections reused</td><td> " + Upstream.getConnectionsReused() + " (" + Upstream.getIdleConnections() + " idle)</td></tr>\n" +
+					"            <tr><td>Requests in progress</td><td> " + SingleFlight.getInFlight() + "</td></tr>\n" +
+					"            <tr><td>Batched name lookups</td><td> " + NameBatcher.getNames() + " (in " + NameBatcher.getRequests() + " requests)</td></tr>\n" +
+					"            <tr><td>Coalesced requests</td><td> " + SingleFlight.getCoalesced() + " (" + SingleFlight.getTimeouts() + " timed out)</td></tr>\n" +
+					(Cluster.isEnabled() ?
+					"            <tr><td>Cluster leases</td><td> " + Cluster.getLeased() + " taken, " + Cluster.getWaited() + " waited for (" + Cluster.getTimeouts() + " timed out)</td></tr>\n" +
+					"            <tr><td>Shared proxy tokens</td><td> " + Cluster.getClaims() + " claimed (" + Cluster.getClaimsFailed() + " times all empty)</td></tr>\n" : "") +
+					"            <tr><td>Access log lines</td><td> " + AccessLog.getWritten() + " (" + AccessLog.getDropped() + " dropped, " + AccessLog.getRateLimited() + " rate limited)</td></tr>\n" +
 					"            <tr><td>Active threads</td><td> " + Spark.activeThreadCount() + "</td></tr>\n" +
 					"            <tr><td>Used memory</td><td> " + Utils.readableFileSize(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) + "</td></tr>\n" +
 					"            <tr><td>----------------------------------------</td><td>-----------------------</td></tr>\n" +
-					"            <tr><td>Requests served from memory&nbsp;&nbsp;</td><td> " + Redis.getRequestsFromMemory() + "</td></tr>\n" +
-					"            <tr><td>Requests served from API</td><td> " + Redis.getRequestsFromApi() + "</td></tr>\n" +
-					"            <tr><td>Outgoing API requests</td><td> " + Redis.getOutgoingRequests() + "</td></tr>\n" +
+					"            <tr><td>Requests served from memory&nbsp;&nbsp;</td><td> " + stats.getRequestsFromMemory() + "</td></tr>\n" +
+					"            <tr><td>Requests served from API</td><td> " + stats.getRequestsFromApi() + "</td></tr>\n" +
+					"            <tr><td>Outgoing API requests</td><td> " + stats.getOutgoingRequests() + "</td></tr>\n" +
+					"            <tr><td>----------------------------------------</td><td>-----------------------</td></tr>\n" +
+					"            <tr><td>Local cache hits</td><td> " + LocalCache.getHits() + "</td></tr>\n" +
+					"            <tr><td>Local cache misses</td><td> " + LocalCache.getMisses() + "</td></tr>\n" +
+					"            <tr><td>Local cache evictions</td><td> " + LocalCache.getEvictions() + "</td></tr>\n" +
+					"            <tr><td>Local cache entries</td><td> " + LocalCache.size() + " (" + Utils.readableFileSize(LocalCache.usedBytes()) + ")</td></tr>\n" +
+					"            <tr><td>Negative cache entries</td><td> " + NegativeCache.getEntries() + " (" + Utils.readableFileSize(NegativeCache.getMemoryBytes()) + ", " + percentage.format(NegativeCache.getEstimatedFalsePositiveRate() * 100) + "% false positives expected)</td></tr>\n" +
+					(TextureStore.isEnabled() ?
+					"            <tr><td>Texture store</td><td> " + TextureStore.getEntries() + " images (" + Utils.readableFileSize(TextureStore.getUsedBytes()) + "), " + TextureStore.getHits() + " hits, " + TextureStore.getMisses() + " misses, " + TextureStore.getEvictions() + " evicted</td></tr>\n" : "") +
+					"            <tr><td>Negative cache checks</td><td> " + NegativeCache.getChecks() + " (" + NegativeCache.getNegatives() + " not invalid, " + NegativeCache.getConfirmed() + " invalid, " + NegativeCache.getFalsePositives() + " unconfirmed)</td></tr>\n" +
 					"            <tr><td>----------------------------------------</td><td>-----------------------</td></tr>\n" +
-					"            <tr><td>Profile requests</td><td> " + Redis.getProfileRequestsCount() + "</td></tr>\n" +
-					"            <tr><td>Name->UUID requests</td><td> " + Redis.getNameRequestsCount() + "</td></tr>\n" +
-					"            <tr><td>Name list requests</td><td> " + Redis.getNamesRequestsCount() + "</td></tr>\n" +
-					"            <tr><td>Name->profile requests</td><td> " + Redis.getNameProfileRequestsCount() + "</td></tr>\n" +
-					"            <tr><td>Total requests served</td><td> " + (Redis.getProfileRequestsCount() + Redis.getNameRequestsCount() + Redis.getNamesRequestsCount() + Redis.getNameProfileRequestsCount()) + "</td></tr>\n" +
+					"            <tr><td>Profile requests</td><td> " + stats.getProfileRequestsCount() + "</td></tr>\n" +
+					"            <tr><td>Name->UUID requests</td><td> " + stats.getNameRequestsCount() + "</td></tr>\n" +
+					"            <tr><td>Name list requests</td><td> " + stats.getNamesRequestsCount() + "</td></tr>\n" +
+					"            <tr><td>Name->profile requests</td><td> " + stats.getNameProfileRequestsCount() + "</td></tr>\n" +
+					"            <tr><td>Total requests served</td><td> " + stats.getTotalRequestsCount() + "</td></tr>\n" +
 					"            <tr><td>----------------------------------------</td><td>-----------------------</td></tr>\n" +
-					"            <tr><td>Profiles in memory</td><td> " + Redis.dbsize(1) + "</td></tr>\n" +
-					"            <tr><td>Name->UUIDs in memory</td><td> " + Redis.dbsize(2) + "</td></tr>\n" +
-					"            <tr><td>Name lists in memory</td><td> " + Redis.dbsize(3) + "</td></tr>\n" +
-					"            <tr><td>Name->profiles in memory</td><td> " + Redis.dbsize(4) + "</td></tr>\n" +
-					"            <tr><td>Invalid requests in memory</td><td> " + Redis.dbsize(5) + "</td></tr>\n" +
+					"            <tr><td>Profiles in memory</td><td> " + stats.getSize(1) + "</td></tr>\n" +
+					"            <tr><td>Name->UUIDs in memory</td><td> " + stats.getSize(2) + "</td></tr>\n" +
+					"            <tr><td>Name lists in memory</td><td> " + stats.getSize(3) + "</td></tr>\n" +
+					"            <tr><td>Invalid requests in memory</td><td> " + stats.getSize(5) + "</td></tr>\n" +
 					"            <tr><td>---Response codes breakdown---</td><td>-----------------------</td></tr>\n" +
 					responseCodeBreakdown +
+					"            <tr><td>---Proxies breakdown---</td><td>-----------------------</td></tr>\n" +
+					proxyBreakdown +
 					"        </table>\n" +
 					"    </body>\n" +
 					"</html>";
@@ -310,15 +326,86 @@ public class MojangPipe {
 		Spark.after("/*", (request, response) -> response.header("Server", "MojangPipe/2.4"));
 		Spark.exception(Exception.class, (e, req, res) -> e.printStackTrace());
 		Spark.awaitInitialization();
-		
-		threadPool.scheduleAtFixedRate(() -> {
-			Ratelimit.removeExpired();
-			newProxy();
-		}, 5, 5, TimeUnit.MINUTES);
 	}
 	
-	static void newProxy() {
-		client = Utils.getClient();
+	//Serves a request from the invalid cache, from memory or from the API, in that order.
+	//Stale entries are served from memory as well, and refreshed in the background.
+	//Concurrent API requests for the same identifier are coalesced, and only the one that fetches goes through admission control. Profiles can be served as their textures representation.
+	//Cached bodies go out with the headers from HttpCaching, and every request ends up in the access log.
+	static CompletableFuture<String> serve(spark.Request request, spark.Response response, String identifier, int db, boolean texturesOnly, String stat, Supplier<CompletableFuture<Result>> fetch) {
+		long start = System.nanoTime();
+		return Cache.lookupAsync(identifier, db).thenCompose(cached -> {
+			if (cached.isInvalid()) {
+				Metrics.served(stat, Metrics.Source.INVALID, start);
+				response.status(204);
+				AccessLog.log(stat, identifier, AccessLog.Source.INVALID, 204, 0, start);
+				return CompletableFuture.completedFuture("");
+			}
+			if (cached.isHit()) {
+				Metrics.served(stat, Metrics.Source.MEM, start);
+				if (cached.isStale()) {
+					Refresher.schedule(stat + ":" + identifier, fetch);
+				}
+				String body = HttpCaching.respond(request, response, cached.getEntry(), texturesOnly);
+				AccessLog.log(stat, identifier, cached.isStale() ? AccessLog.Source.STALE : AccessLog.Source.MEM, response.status(), 0, start);
+				return CompletableFuture.completedFuture(body);
+			}
+			return SingleFlight.run(stat + ":" + identifier, () -> Admission.admit(fetch)).handle((result, error) -> {
+				if (Admission.isRejected(error)) {
+					response.status(503);
+					response.header("Retry-After", String.valueOf(Admission.getRetryAfter(error)));
+					AccessLog.log(stat, identifier, AccessLog.Source.SHED, 503, 0, start);
+					return "";
+				}
+				if (error != null) {
+					AccessLog.log(stat, identifier, AccessLog.Source.ERROR, 500, 0, start);
+					throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+				}
+				Metrics.served(stat, Metrics.Source.API, start);
+				if (!result.isOk()) {
+					response.status(result.getStatus());
+					AccessLog.log(stat, identifier, AccessLog.Source.API, result.getStatus(), result.getProxy(), start);
+					return result.getJson();
+				}
+				String body = HttpCaching.respond(request, response, result.getEntry(), texturesOnly);
+				AccessLog.log(stat, identifier, AccessLog.Source.API, response.status(), result.getProxy(), start);
+				return body;
+			});
+		});
+	}
+	
+	static CompletableFuture<Result> fetchProfile(String uuid) {
+		return Upstream.fetch(sessionServer + "/session/minecraft/profile/" + uuid, uuid, 1);
+	}
+	
+	//Resolves the name to a UUID, then fetches that UUID's profile. Both legs go through the cache first and
+	//through the same single-flight keys as /api/name and /sessionserver. Stale entries are fetched again, so this
+	//also refreshes stale name -> profile lookups.
+	static CompletableFuture<Result> fetchNameProfile(String name) {
+		return Cache.lookupAsync(name, 2).thenCompose(cachedName -> {
+			if (cachedName.isHit() && !cachedName.isStale()) {
+				return CompletableFuture.completedFuture(new Result(200, cachedName.getEntry()));
+			}
+			return SingleFlight.run("uuid:" + name, () -> NameBatcher.fetch(name));
+		}).thenCompose(nameResult -> {
+			if (!nameResult.isOk()) {
+				return CompletableFuture.completedFuture(nameResult);
+			}
+			String uuid = ProfileJson.getString(nameResult.getJson(), "id");
+			return Cache.lookupAsync(uuid, 1).thenCompose(cachedProfile -> {
+				if (cachedProfile.isHit() && !cachedProfile.isStale()) {
+					return CompletableFuture.completedFuture(new Result(200, cachedProfile.getEntry()));
+				}
+				return SingleFlight.run("profile:" + uuid, () -> fetchProfile(uuid));
+			});
+		});
+	}
+	
+	//In minutes. Set from the options, the benchmarks set them without going through main.
+	static void setLifetimes(int cache, int stale, int invalid) {
+		cacheLifetime = cache;
+		staleLifetime = stale;
+		invalidLifetime = invalid;
 	}
 	
 	static int getCacheLifetime() {
@@ -329,6 +416,18 @@ public class MojangPipe {
 		return invalidLifetime;
 	}
 	
+	static int getStaleLifetime() {
+		return staleLifetime;
+	}
+	
+	static boolean isAsync() {
+		return async;
+	}
+	
+	static String getMojangApi() {
+		return mojangApi;
+	}
+	
 	static ScheduledExecutorService getThreadPool() {
 		return threadPool;
 	}
@@ -0,0 +1,147 @@
+package io.misterfix.mojangpipe;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+//Collects name -> UUID lookups over a short window and resolves them through Mojang's bulk endpoint,
+//which takes up to 10 names per request against the same rate limit as a single lookup.
+class NameBatcher {
+	private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+	private static final int MAX_BATCH = 10;
+	//What Mojang takes as a name in a batch, anything else gets the whole batch a 400.
+	private static final Pattern NAME = Pattern.compile("\\w{1,16}");
+	//Batches are sent from threads of their own, in blocking mode each one waits for Mojang's answer.
+	private static final int SENDERS = 4;
+	private static final ExecutorService senders = Utils.executor("name-batcher", SENDERS);
+	//Waiting lookups, grouped by lower-cased name since Mojang's names are case insensitive.
+	private static final Map<String, List<Waiter>> pending = new LinkedHashMap<>();
+	private static final LongAdder requests = new LongAdder();
+	private static final LongAdder names = new LongAdder();
+	private static long window;
+	private static boolean scheduled;
+	
+	static void init(long windowMillis) {
+		window = windowMillis;
+	}
+	
+	//Names that can't be batched are looked up on their own, so they only fail their own lookup.
+	static CompletableFuture<Result> fetch(String name) {
+		if (window <= 0 || !NAME.matcher(name).matches()) {
+			return fetchSingle(name);
+		}
+		//A name another node is already looking up isn't added to a batch here.
+		return Cluster.lease(name, 2, () -> batch(name));
+	}
+	
+	private static CompletableFuture<Result> fetchSingle(String name) {
+		return Upstream.fetch(MojangPipe.getMojangApi() + "/users/profiles/minecraft/" + name, name, 2);
+	}
+	
+	private static CompletableFuture<Result> batch(String name) {
+		CompletableFuture<Result> future = new CompletableFuture<>();
+		synchronized (pending) {
+			pending.computeIfAbsent(name.toLowerCase(Locale.ROOT), key -> new ArrayList<>(1)).add(new Waiter(name, future));
+			if (pending.size() >= MAX_BATCH) {
+				senders.execute(NameBatcher::flush);
+			} else if (!scheduled) {
+				scheduled = true;
+				MojangPipe.getThreadPool().schedule(() -> senders.execute(NameBatcher::flush), window, TimeUnit.MILLISECONDS);
+			}
+		}
+		return future;
+	}
+	
+	private static void flush() {
+		while (true) {
+			Map<String, List<Waiter>> batch = new LinkedHashMap<>();
+			synchronized (pending) {
+				Iterator<Map.Entry<String, List<Waiter>>> iterator = pending.entrySet().iterator();
+				while (batch.size() < MAX_BATCH && iterator.hasNext()) {
+					Map.Entry<String, List<Waiter>> entry = iterator.next();
+					batch.put(entry.getKey(), entry.getValue());
+					iterator.remove();
+				}
+				if (batch.isEmpty()) {
+					scheduled = false;
+					return;
+				}
+			}
+			send(batch);
+		}
+	}
+	
+	private static void send(Map<String, List<Waiter>> batch) {
+		long time = System.currentTimeMillis();
+		List<String> body = new ArrayList<>(batch.size());
+		batch.values().forEach(waiters -> body.add(waiters.get(0).name));
+		requests.increment();
+		names.add(batch.size());
+		
+		Request request = new Request.Builder().url(MojangPipe.getMojangApi() + "/profiles/minecraft").post(RequestBody.create(JSON, ProfileJson.toArray(body))).build();
+		Upstream.call(request).whenComplete((result, error) -> {
+			if (error != null) {
+				batch.values().forEach(waiters -> waiters.forEach(waiter -> waiter.future.completeExceptionally(error)));
+				return;
+			}
+			if (result.getStatus() >= 400 && result.getStatus() < 500 && result.getStatus() != 429) {
+				//Mojang didn't like one of the names, each of them is looked up on its own instead.
+				batch.values().forEach(waiters -> fetchSingle(waiters.get(0).name).whenComplete((single, singleError) -> waiters.forEach(waiter -> {
+					if (singleError != null) {
+						waiter.future.completeExceptionally(singleError);
+					} else {
+						waiter.future.complete(single);
+					}
+				})));
+				return;
+			}
+			if (!result.isOk()) {
+				batch.values().forEach(waiters -> waiters.forEach(waiter -> waiter.future.complete(new Result(result.getStatus(), ""))));
+				return;
+			}
+			Map<String, String> found = ProfileJson.splitProfiles(result.getJson());
+			batch.forEach((key, waiters) -> {
+				String json = found.get(key);
+				for (Waiter waiter : waiters) {
+					if (json != null) {
+						waiter.future.complete(new Result(200, Cache.putJson(waiter.name, time, json, 2)));
+					} else {
+						//Names missing from the response don't exist, like a 204 from the single lookup.
+						Cache.handleStatusCode(204, waiter.name);
+						waiter.future.complete(new Result(204, ""));
+					}
+				}
+			});
+		});
+	}
+	
+	static long getRequests() {
+		return requests.sum();
+	}
+	
+	static long getNames() {
+		return names.sum();
+	}
+	
+	private static class Waiter {
+		private final String name;
+		private final CompletableFuture<Result> future;
+		
+		Waiter(String name, CompletableFuture<Result> future) {
+			this.name = name;
+			this.future = future;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package io.misterfix.mojangpipe;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//In-process view of the invalid cache. Identifiers known to be invalid go into a Bloom filter, which tells whether an
+//identifier definitely isn't known to be invalid (so the invalid cache read in Redis can be skipped), and into a table of
+//64-bit fingerprints and times, which answers repeat requests for invalid identifiers without Redis.
+//Both are split into generations rotated so that an entry is kept for the invalid lifetime: each generation takes new
+//entries for lifetime / (GENERATIONS - 1), and the oldest is dropped when a new one starts.
+class NegativeCache {
+	private static final int GENERATIONS = 4;
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+	private static final LongAdder checks = new LongAdder();
+	private static final LongAdder negatives = new LongAdder();
+	private static final LongAdder confirmed = new LongAdder();
+	private static final LongAdder falsePositives = new LongAdder();
+	private static volatile Generation[] generations;
+	private static int bitsPerGeneration;
+	private static int hashes;
+	
+	enum Answer {
+		//Confirmed invalid, no need to ask Redis.
+		INVALID,
+		//Might be invalid, Redis has to be asked.
+		UNKNOWN,
+		//Definitely not known to be invalid by this instance.
+		ABSENT
+	}
+	
+	//Sized for the given number of invalid identifiers per invalid lifetime, 0 turns it off.
+	static void init(int expectedPerLifetime) {
+		if (expectedPerLifetime <= 0 || MojangPipe.getInvalidLifetime() <= 0) {
+			return;
+		}
+		int perGeneration = Math.max(1024, expectedPerLifetime / (GENERATIONS - 1));
+		double bits = -perGeneration * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2));
+		bitsPerGeneration = (int) Math.min(Integer.MAX_VALUE - 63, Math.ceil(bits / 64) * 64);
+		hashes = Math.max(1, (int) Math.round(bits / perGeneration * Math.log(2)));
+		Generation[] initial = new Generation[GENERATIONS];
+		for (int i = 0; i < GENERATIONS; i++) {
+			initial[i] = new Generation();
+		}
+		generations = initial;
+		long span = TimeUnit.MINUTES.toMillis(MojangPipe.getInvalidLifetime()) / (GENERATIONS - 1);
+		MojangPipe.getThreadPool().scheduleAtFixedRate(NegativeCache::rotate, span, span, TimeUnit.MILLISECONDS);
+	}
+	
+	static boolean isEnabled() {
+		return generations != null;
+	}
+	
+	private static void rotate() {
+		Generation[] rotated = new Generation[GENERATIONS];
+		rotated[0] = new Generation();
+		System.arraycopy(generations, 0, rotated, 1, GENERATIONS - 1);
+		generations = rotated;
+	}
+	
+	static Answer check(String identifier, long now) {
+		Generation[] current = generations;
+		if (current == null) {
+			return Answer.UNKNOWN;
+		}
+		checks.increment();
+		long hash = hash(identifier);
+		boolean mightContain = false;
+		for (Generation generation : current) {
+			if (generation.mightContain(hash)) {
+				mightContain = true;
+				break;
+			}
+		}
+		if (!mightContain) {
+			negatives.increment();
+			return Answer.ABSENT;
+		}
+		long lifetime = Cache.lifetime(5);
+		for (Generation generation : current) {
+			long time = generation.time(hash);
+			if (time > 0 && now - time < lifetime) {
+				confirmed.increment();
+				return Answer.INVALID;
+			}
+		}
+		//Either a false positive, or an entry that expired or was removed.
+		falsePositives.increment();
+		return Answer.UNKNOWN;
+	}
+	
+	static void add(String identifier, long time) {
+		Generation[] current = generations;
+		if (current == null) {
+			return;
+		}
+		long hash = hash(identifier);
+		current[0].add(hash, time);
+	}
+	
+	//The identifier exists after all. The Bloom filters can't forget it, their "maybe" is then checked against the table.
+	static void remove(String identifier) {
+		Generation[] current = generations;
+		if (current == null) {
+			return;
+		}
+		long hash = hash(identifier);
+		for (Generation generation : current) {
+			generation.remove(hash);
+		}
+	}
+	
+	//0 marks an empty slot of the table.
+	private static long hash(String identifier) {
+		long hash = Utils.hash(identifier.getBytes(StandardCharsets.UTF_8));
+		return hash == 0 ? 1 : hash;
+	}
+	
+	static long getEntries() {
+		Generation[] current = generations;
+		long entries = 0;
+		if (current != null) {
+			for (Generation generation : current) {
+				entries += generation.table.size();
+			}
+		}
+		return entries;
+	}
+	
+	static long getMemoryBytes() {
+		Generation[] current = generations;
+		long bytes = 0;
+		if (current != null) {
+			for (Generation generation : current) {
+				bytes += bitsPerGeneration / 8 + generation.table.memoryBytes();
+			}
+		}
+		return bytes;
+	}
+	
+	//Expected chance of a "maybe" for an identifier that was never added, from how full the filters are.
+	static double getEstimatedFalsePositiveRate() {
+		Generation[] current = generations;
+		if (current == null) {
+			return 0;
+		}
+		double none = 1;
+		for (Generation generation : current) {
+			none *= 1 - Math.pow(1 - Math.exp(-(double) hashes * generation.added.sum() / bitsPerGeneration), hashes);
+		}
+		return 1 - none;
+	}
+	
+	static long getChecks() {
+		return checks.sum();
+	}
+	
+	//Checks answered "definitely not invalid", which skip the invalid cache read in Redis.
+	static long getNegatives() {
+		return negatives.sum();
+	}
+	
+	//Checks answered "invalid" without Redis.
+	static long getConfirmed() {
+		return confirmed.sum();
+	}
+	
+	//"Maybe" answers the table couldn't confirm. Also counts identifiers that expired or turned out valid.
+	static long getFalsePositives() {
+		return falsePositives.sum();
+	}
+	
+	private static class Generation {
+		private final AtomicLongArray bits = new AtomicLongArray(bitsPerGeneration / 64);
+		private final FingerprintTable table = new FingerprintTable();
+		private final LongAdder added = new LongAdder();
+		
+		//Double hashing, the k indexes are h1 + i * h2.
+		boolean mightContain(long hash) {
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < hashes; i++) {
+				int bit = Math.floorMod(h1 + i * h2, bitsPerGeneration);
+				if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		void add(long hash, long time) {
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < hashes; i++) {
+				int bit = Math.floorMod(h1 + i * h2, bitsPerGeneration);
+				long mask = 1L << bit;
+				bits.getAndAccumulate(bit >>> 6, mask, (word, set) -> word | set);
+			}
+			if (table.put(hash, time)) {
+				added.increment();
+			}
+		}
+		
+		long time(long hash) {
+			return table.get(hash);
+		}
+		
+		void remove(long hash) {
+			table.remove(hash);
+		}
+	}
+	
+	//Open addressing table of fingerprint -> time, the time kept in seconds since EPOCH to save space. 0 marks an empty slot.
+	private static class FingerprintTable {
+		private static final long EPOCH = System.currentTimeMillis();
+		private long[] fingerprints = new long[64];
+		private int[] seconds = new int[64];
+		private int size;
+		
+		synchronized boolean put(long fingerprint, long time) {
+			if ((size + 1) * 2 > fingerprints.length) {
+				resize();
+			}
+			int slot = slot(fingerprint, fingerprints.length);
+			while (fingerprints[slot] != 0 && fingerprints[slot] != fingerprint) {
+				slot = (slot + 1) & (fingerprints.length - 1);
+			}
+			boolean added = fingerprints[slot] == 0;
+			if (added) {
+				size++;
+			}
+			fingerprints[slot] = fingerprint;
+			seconds[slot] = (int) Math.floorDiv(time - EPOCH, 1000);
+			return added;
+		}
+		
+		//The time in milliseconds (to the second), 0 if it's not in here.
+		synchronized long get(long fingerprint) {
+			int slot = slot(fingerprint, fingerprints.length);
+			while (fingerprints[slot] != 0) {
+				if (fingerprints[slot] == fingerprint) {
+					return EPOCH + seconds[slot] * 1000L;
+				}
+				slot = (slot + 1) & (fingerprints.length - 1);
+			}
+			return 0;
+		}
+		
+		//Backward shift deletion, so lookups never need tombstones.
+		synchronized void remove(long fingerprint) {
+			int mask = fingerprints.length - 1;
+			int slot = slot(fingerprint, fingerprints.length);
+			while (fingerprints[slot] != fingerprint) {
+				if (fingerprints[slot] == 0) {
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			size--;
+			int hole = slot;
+			int next = (hole + 1) & mask;
+			while (fingerprints[next] != 0) {
+				int home = slot(fingerprints[next], fingerprints.length);
+				//Moves the entry back into the hole unless its home slot lies (cyclically) after the hole.
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					fingerprints[hole] = fingerprints[next];
+					seconds[hole] = seconds[next];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			fingerprints[hole] = 0;
+			seconds[hole] = 0;
+		}
+		
+		private void resize() {
+			long[] oldFingerprints = fingerprints;
+			int[] oldSeconds = seconds;
+			fingerprints = new long[oldFingerprints.length * 2];
+			seconds = new int[oldSeconds.length * 2];
+			for (int i = 0; i < oldFingerprints.length; i++) {
+				if (oldFingerprints[i] != 0) {
+					int slot = slot(oldFingerprints[i], fingerprints.length);
+					while (fingerprints[slot] != 0) {
+						slot = (slot + 1) & (fingerprints.length - 1);
+					}
+					fingerprints[slot] = oldFingerprints[i];
+					seconds[slot] = oldSeconds[i];
+				}
+			}
+		}
+		
+		private static int slot(long fingerprint, int length) {
+			return (int) (fingerprint ^ (fingerprint >>> 32)) & (length - 1);
+		}
+		
+		synchronized int size() {
+			return size;
+		}
+		
+		synchronized long memoryBytes() {
+			return fingerprints.length * (long) (Long.BYTES + Integer.BYTES);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package io.misterfix.mojangpipe;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+//Streaming parsing of Mojang's responses, so the upstream path doesn't build a tree of objects per response.
+class ProfileJson {
+	private static final JsonFactory factory = new JsonFactory();
+	
+	//The /textures representation of a session server profile: uuid, name, skin and cape urls, and whether it's a legacy account.
+	static String toTextures(String profile) {
+		String id = null;
+		String name = null;
+		String value = null;
+		boolean legacy = false;
+		try (JsonParser parser = factory.createParser(profile)) {
+			parser.nextToken();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (field.equals("id")) {
+					id = parser.getText();
+				} else if (field.equals("name")) {
+					name = parser.getText();
+				} else if (field.equals("legacy")) {
+					legacy = token != JsonToken.VALUE_NULL;
+				} else if (field.equals("properties") && token == JsonToken.START_ARRAY) {
+					value = readTexturesProperty(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			
+			StringWriter out = new StringWriter(256);
+			try (JsonGenerator generator = factory.createGenerator(out)) {
+				generator.writeStartObject();
+				generator.writeStringField("uuid", id);
+				generator.writeStringField("name", name);
+				if (value != null) {
+					writeTextureUrls(generator, Base64.getDecoder().decode(value));
+				}
+				if (legacy) {
+					generator.writeBooleanField("legacy", true);
+				}
+				generator.writeEndObject();
+			}
+			return out.toString();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	//Value of the "textures" entry of the properties array, the parser is left at the end of the array.
+	private static String readTexturesProperty(JsonParser parser) throws IOException {
+		String textures = null;
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			String propertyName = null;
+			String propertyValue = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if (field.equals("name")) {
+					propertyName = parser.getText();
+				} else if (field.equals("value")) {
+					propertyValue = parser.getText();
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if ("textures".equals(propertyName)) {
+				textures = propertyValue;
+			}
+		}
+		return textures;
+	}
+	
+	//Copies the SKIN and CAPE urls out of the decoded textures property.
+	private static void writeTextureUrls(JsonGenerator generator, byte[] decoded) throws IOException {
+		try (JsonParser parser = factory.createParser(decoded)) {
+			parser.nextToken();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				if (parser.nextToken() != JsonToken.START_OBJECT || !field.equals("textures")) {
+					parser.skipChildren();
+					continue;
+				}
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String type = parser.getCurrentName();
+					if (parser.nextToken() != JsonToken.START_OBJECT || !(type.equals("SKIN") || type.equals("CAPE"))) {
+						parser.skipChildren();
+						continue;
+					}
+					String url = null;
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String urlField = parser.getCurrentName();
+						parser.nextToken();
+						if (urlField.equals("url")) {
+							url = parser.getText();
+						} else {
+							parser.skipChildren();
+						}
+					}
+					if (url != null) {
+						generator.writeStringField(type.toLowerCase(Locale.ROOT), url);
+					}
+				}
+			}
+		}
+	}
+	
+	//Value of a top level string field, null if there's none.
+	static String getString(String json, String name) {
+		try (JsonParser parser = factory.createParser(json)) {
+			parser.nextToken();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if (field.equals(name)) {
+					return parser.getText();
+				}
+				parser.skipChildren();
+			}
+			return null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	//Last (current) name in a name history.
+	static String getCurrentName(String json) {
+		String name = null;
+		try (JsonParser parser = factory.createParser(json)) {
+			parser.nextToken();
+			while (parser.nextToken() == JsonToken.START_OBJECT) {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					parser.nextToken();
+					if (field.equals("name")) {
+						name = parser.getText();
+					} else {
+						parser.skipChildren();
+					}
+				}
+			}
+			return name;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	//A name -> UUID entry as the name lookup endpoint returns it.
+	static String toNameEntry(String id, String name) {
+		StringWriter out = new StringWriter(64);
+		try (JsonGenerator generator = factory.createGenerator(out)) {
+			generator.writeStartObject();
+			generator.writeStringField("id", id);
+			generator.writeStringField("name", name);
+			generator.writeEndObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+	
+	//JSON array of the given strings, as the bulk profiles endpoint takes it.
+	static String toArray(List<String> values) {
+		StringWriter out = new StringWriter(values.size() * 20);
+		try (JsonGenerator generator = factory.createGenerator(out)) {
+			generator.writeStartArray();
+			for (String value : values) {
+				generator.writeString(value);
+			}
+			generator.writeEndArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+	
+	//The strings of a JSON array of strings, like the bulk profiles endpoint takes. Anything else is an IllegalArgumentException.
+	static List<String> fromArray(String json) {
+		List<String> values = new ArrayList<>();
+		try (JsonParser parser = factory.createParser(json)) {
+			if (parser.nextToken() != JsonToken.START_ARRAY) {
+				throw new IllegalArgumentException("Expected an array");
+			}
+			JsonToken token;
+			while ((token = parser.nextToken()) == JsonToken.VALUE_STRING) {
+				values.add(parser.getText());
+			}
+			if (token != JsonToken.END_ARRAY) {
+				throw new IllegalArgumentException("Expected an array of strings");
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+		return values;
+	}
+	
+	//Splits the bulk profiles response into one JSON object per profile, keyed by lower-cased name.
+	static Map<String, String> splitProfiles(String json) {
+		Map<String, String> profiles = new LinkedHashMap<>();
+		try (JsonParser parser = factory.createParser(json)) {
+			parser.nextToken();
+			while (parser.nextToken() == JsonToken.START_OBJECT) {
+				StringWriter out = new StringWriter(64);
+				try (JsonGenerator generator = factory.createGenerator(out)) {
+					generator.copyCurrentStructure(parser);
+				}
+				String profile = out.toString();
+				String name = getString(profile, "name");
+				if (name != null) {
+					profiles.put(name.toLowerCase(Locale.ROOT), profile);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return profiles;
+	}
+}
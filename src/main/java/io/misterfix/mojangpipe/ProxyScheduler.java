@@ -0,0 +1,343 @@
+package io.misterfix.mojangpipe;
+
+import okhttp3.OkHttpClient;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+//Spreads upstream calls over all Squid ports (egress IPs) at once. Each port has a token bucket sized to
+//Mojang's per-IP rate limit, and a health score built from its recent 429s, errors and latency.
+//Ports that get rate limited or keep failing are quarantined for a while. Nothing is ever sent through an empty
+//bucket or a quarantined port: a call waits a little for the next token, and is turned away when none comes in time.
+class ProxyScheduler {
+	//Weight of the newest sample in the error rate and latency averages.
+	private static final double ALPHA = 0.1;
+	private static final double QUARANTINE_ERROR_RATE = 0.5;
+	//The port a retry excludes keeps this much of its score, so it's only picked when no other port has a token.
+	private static final double EXCLUDED_WEIGHT = 1e-6;
+	//Shortest time a waiting call sleeps before it tries again, in case another one took the token it waited for.
+	private static final long MIN_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final LongAdder exhausted = new LongAdder();
+	private static final LongAdder refused = new LongAdder();
+	private static final AtomicInteger rotation = new AtomicInteger();
+	private static Egress[] egresses;
+	private static long quarantineNanos;
+	private static long maxWaitNanos;
+	private static int rateLimit;
+	
+	static void init(OkHttpClient baseClient, List<Integer> ports, int requestsPerTenMinutes, int quarantineSeconds, int maxWaitMillis) {
+		quarantineNanos = TimeUnit.SECONDS.toNanos(quarantineSeconds);
+		maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		rateLimit = requestsPerTenMinutes;
+		egresses = new Egress[ports.size()];
+		for (int i = 0; i < egresses.length; i++) {
+			int port = ports.get(i);
+			OkHttpClient client = baseClient.newBuilder()
+					.proxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", port)))
+					.build();
+			egresses[i] = new Egress(port, client, requestsPerTenMinutes);
+		}
+	}
+	
+	//Takes a token from the healthy port with the best score, weighted by how full its bucket is so load spreads out.
+	//The excluded port is only used if no other port has a token. null if every bucket is empty or every port is quarantined.
+	static Egress acquire(Egress excluded) {
+		long now = System.nanoTime();
+		while (true) {
+			Egress best = null;
+			double bestScore = 0;
+			for (Egress egress : egresses) {
+				if (egress.isQuarantined(now)) {
+					continue;
+				}
+				double score = egress.getScore() * egress.bucket.fill(now) * (egress == excluded ? EXCLUDED_WEIGHT : 1);
+				if (score > bestScore) {
+					best = egress;
+					bestScore = score;
+				}
+			}
+			if (best == null || best.bucket.tryAcquire(now)) {
+				return best;
+			}
+		}
+	}
+	
+	static Egress acquire() {
+		return acquire(null);
+	}
+	
+	//The next port in turn, for calls that aren't to Mojang's API: they don't take tokens, and don't count towards health.
+	static Egress next() {
+		return egresses[Math.floorMod(rotation.getAndIncrement(), egresses.length)];
+	}
+	
+	//Takes a token, waiting up to --proxyWait for one if there's none right now. After that it fails with Exhausted,
+	//which the routes answer like a shed request, with a Retry-After of when the next token is due.
+	static CompletableFuture<Egress> acquireAsync(Egress excluded) {
+		return acquireAsync(excluded, System.nanoTime() + maxWaitNanos);
+	}
+	
+	private static CompletableFuture<Egress> acquireAsync(Egress excluded, long deadline) {
+		return tryAcquireAsync(excluded).handle((egress, error) -> {
+			if (error == null) {
+				return CompletableFuture.completedFuture(egress);
+			}
+			Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+			if (!(cause instanceof Exhausted)) {
+				return CompletableFuture.<Egress>failedFuture(cause);
+			}
+			long wait = Math.max(MIN_WAIT_NANOS, ((Exhausted) cause).waitNanos);
+			if (System.nanoTime() + wait - deadline > 0) {
+				refused.increment();
+				return CompletableFuture.<Egress>failedFuture(cause);
+			}
+			return sleep(wait).thenCompose(woken -> acquireAsync(excluded, deadline));
+		}).thenCompose(Function.identity());
+	}
+	
+	//Doesn't wait, fails with Exhausted if there's no token right now. In cluster mode the tokens come from the buckets
+	//all nodes share in Redis, the candidates are the ports that are healthy here, by their local score. Without Redis
+	//to ask, the local buckets are used.
+	static CompletableFuture<Egress> tryAcquireAsync(Egress excluded) {
+		if (!Cluster.isEnabled()) {
+			return orExhausted(acquire(excluded));
+		}
+		long now = System.nanoTime();
+		List<Egress> candidates = new ArrayList<>(egresses.length);
+		for (Egress egress : egresses) {
+			if (!egress.isQuarantined(now)) {
+				candidates.add(egress);
+			}
+		}
+		if (candidates.isEmpty()) {
+			return orExhausted(null);
+		}
+		int[] ports = new int[candidates.size()];
+		double[] scores = new double[candidates.size()];
+		for (int i = 0; i < ports.length; i++) {
+			ports[i] = candidates.get(i).port;
+			scores[i] = candidates.get(i).getScore() * (candidates.get(i) == excluded ? EXCLUDED_WEIGHT : 1);
+		}
+		return Cluster.claim(ports, scores, rateLimit, rateLimit / 600000.0).handle((index, error) -> {
+			if (error != null) {
+				return orExhausted(acquire(excluded));
+			}
+			if (index >= 0) {
+				return CompletableFuture.completedFuture(candidates.get(index.intValue()));
+			}
+			exhausted.increment();
+			return CompletableFuture.<Egress>failedFuture(new Exhausted(TimeUnit.MILLISECONDS.toNanos(-1 - index)));
+		}).thenCompose(Function.identity());
+	}
+	
+	private static CompletableFuture<Egress> orExhausted(Egress egress) {
+		if (egress != null) {
+			return CompletableFuture.completedFuture(egress);
+		}
+		exhausted.increment();
+		return CompletableFuture.failedFuture(new Exhausted(getWaitNanos(System.nanoTime())));
+	}
+	
+	//How long until some port has a token again, counting the quarantine it may be in.
+	private static long getWaitNanos(long now) {
+		long wait = Long.MAX_VALUE;
+		for (Egress egress : egresses) {
+			wait = Math.min(wait, Math.max(egress.quarantinedUntil - now, egress.bucket.nanosUntilToken(now)));
+		}
+		return Math.max(0, wait);
+	}
+	
+	//In blocking mode the calling thread waits, like it does for Redis. In async mode the wait is a timer on the thread pool.
+	private static CompletableFuture<Void> sleep(long nanos) {
+		if (!MojangPipe.isAsync()) {
+			LockSupport.parkNanos(nanos);
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> woken = new CompletableFuture<>();
+		MojangPipe.getThreadPool().schedule(() -> woken.complete(null), nanos, TimeUnit.NANOSECONDS);
+		return woken;
+	}
+	
+	static Egress[] getEgresses() {
+		return egresses;
+	}
+	
+	static int getHealthyCount() {
+		long now = System.nanoTime();
+		int healthy = 0;
+		for (Egress egress : egresses) {
+			if (!egress.isQuarantined(now)) {
+				healthy++;
+			}
+		}
+		return healthy;
+	}
+	
+	static long getExhausted() {
+		return exhausted.sum();
+	}
+	
+	static long getRefused() {
+		return refused.sum();
+	}
+	
+	//No port could take a call before the wait ran out.
+	static class Exhausted extends Admission.Rejected {
+		private static final long serialVersionUID = 1L;
+		private final long waitNanos;
+		
+		Exhausted(long waitNanos) {
+			super("No proxy has a token left", Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999)));
+			this.waitNanos = waitNanos;
+		}
+	}
+	
+	static class Egress {
+		private final int port;
+		private final OkHttpClient client;
+		private final TokenBucket bucket;
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder ratelimited = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder quarantines = new LongAdder();
+		private final Metrics.Histogram latency = new Metrics.Histogram();
+		private double errorRate;
+		private double latencyMillis;
+		private volatile long quarantinedUntil;
+		
+		Egress(int port, OkHttpClient client, int requestsPerTenMinutes) {
+			this.port = port;
+			this.client = client;
+			this.bucket = new TokenBucket(requestsPerTenMinutes, requestsPerTenMinutes / 600.0);
+		}
+		
+		//Records the outcome of a call made through this port, status is -1 for I/O failures.
+		void record(int status, long latencyNanos) {
+			requests.increment();
+			latency.observe(latencyNanos);
+			boolean failed = status == 429 || status < 0 || status >= 500;
+			if (status == 429) {
+				ratelimited.increment();
+			} else if (failed) {
+				errors.increment();
+			}
+			boolean quarantined = false;
+			synchronized (this) {
+				errorRate += ALPHA * ((failed ? 1 : 0) - errorRate);
+				latencyMillis += ALPHA * (latencyNanos / 1e6 - latencyMillis);
+				
+				//A 429 means Mojang has already rate limited this IP, so it's taken out right away.
+				if (status == 429 || errorRate > QUARANTINE_ERROR_RATE) {
+					quarantinedUntil = System.nanoTime() + quarantineNanos;
+					quarantines.increment();
+					quarantined = true;
+					//Comes back on probation, a couple more failures put it back in quarantine.
+					errorRate = QUARANTINE_ERROR_RATE / 2;
+				}
+			}
+			//Not while holding the lock, in blocking mode this waits for Redis.
+			if (quarantined) {
+				Cluster.quarantine(port, TimeUnit.NANOSECONDS.toMillis(quarantineNanos));
+			}
+		}
+		
+		//1 for a port without errors and fast responses, towards 0 as errors and latency go up.
+		synchronized double getScore() {
+			return (1 - errorRate) / (1 + latencyMillis / 1000);
+		}
+		
+		boolean isQuarantined(long now) {
+			return quarantinedUntil - now > 0;
+		}
+		
+		OkHttpClient getClient() {
+			return client;
+		}
+		
+		int getPort() {
+			return port;
+		}
+		
+		long getRequests() {
+			return requests.sum();
+		}
+		
+		long getRatelimited() {
+			return ratelimited.sum();
+		}
+		
+		long getErrors() {
+			return errors.sum();
+		}
+		
+		long getQuarantines() {
+			return quarantines.sum();
+		}
+		
+		synchronized double getLatencyMillis() {
+			return latencyMillis;
+		}
+		
+		Metrics.Histogram getLatency() {
+			return latency;
+		}
+		
+		int getTokens() {
+			return (int) bucket.available(System.nanoTime());
+		}
+	}
+	
+	private static class TokenBucket {
+		private final double capacity;
+		private final double perNano;
+		private double tokens;
+		private long refilled = System.nanoTime();
+		
+		TokenBucket(double capacity, double perSecond) {
+			this.capacity = capacity;
+			this.perNano = perSecond / 1e9;
+			this.tokens = capacity;
+		}
+		
+		synchronized boolean tryAcquire(long now) {
+			refill(now);
+			if (tokens < 1) {
+				return false;
+			}
+			tokens--;
+			return true;
+		}
+		
+		synchronized double available(long now) {
+			refill(now);
+			return tokens;
+		}
+		
+		synchronized long nanosUntilToken(long now) {
+			refill(now);
+			return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perNano);
+		}
+		
+		//Share of the bucket that's available, 0 when there isn't a whole token left.
+		synchronized double fill(long now) {
+			refill(now);
+			return tokens < 1 ? 0 : tokens / capacity;
+		}
+		
+		private void refill(long now) {
+			if (now > refilled) {
+				tokens = Math.min(capacity, tokens + (now - refilled) * perNano);
+				refilled = now;
+			}
+		}
+	}
+}
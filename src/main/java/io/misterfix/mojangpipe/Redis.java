@@ -1,32 +1,74 @@
 package io.misterfix.mojangpipe;
 
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.async.RedisScriptingAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
 
-import java.text.DecimalFormat;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
-public class Redis {
-	static void init() {
+//The CacheBackend of a Redis server shared by any number of instances.
+public class Redis implements CacheBackend {
+	//In unified mode all datasets live in UNIFIED_DB, told apart by these key prefixes (indexed by the legacy db number).
+	//Nothing is stored under 4 (name -> profile) anymore, those lookups follow the name -> UUID entry to the profile.
+	private static final String[] PREFIXES = {"", "profile:", "uuid:", "names:", "nameprofile:", "invalid:"};
+	private static final int UNIFIED_DB = 1;
+	private static final String TEXTURES_PREFIX = "textures:";
+	//Without a codec the ETags of a unified entry are kept next to it too, as "json tag" or "json tag textures tag".
+	private static final String TAGS_PREFIX = "etag:";
+	//In unified mode the datasets can only be counted by scanning the whole keyspace. That's done in one pass for all
+	//prefixes, and only this often, the snapshots in between reuse the last count.
+	private static final long KEY_COUNT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+	//Answers "invalid / fresh json / miss" for a lookup in a single round trip. Freshness is left to the key TTLs.
+	//The ETags and, for profiles, the textures representation stored next to the json are returned with it.
+	private static final String LOOKUP_SCRIPT =
+			"local ttl = redis.call('pttl', KEYS[1])\n" +
+			"if ttl > 0 then return {0, ttl} end\n" +
+			"local json = redis.call('get', KEYS[2])\n" +
+			"if json then return {1, redis.call('pttl', KEYS[2]), json, KEYS[3] and redis.call('get', KEYS[3]), KEYS[4] and redis.call('get', KEYS[4])} end\n" +
+			"return {2}";
+	private final boolean unified;
+	//Null for the original layout, see ValueCodec.
+	private final ValueCodec codec;
+	private final String lookupSha;
+	private long[] keyCounts;
+	private long keysCounted;
+	
+	Redis(boolean unifiedKeyspace, ValueCodec valueCodec) {
+		this(unifiedKeyspace, valueCodec, false);
+	}
+	
+	//A node joining a cluster keeps what's in db 0, the other nodes' leases, proxy buckets and stats are in there.
+	Redis(boolean unifiedKeyspace, ValueCodec valueCodec, boolean cluster) {
+		unified = unifiedKeyspace;
+		codec = valueCodec;
 		try (WrappedRedis wrapped = WrappedRedis.get(0)) {
 			RedisCommands<String, String> redis = wrapped.get();
+			lookupSha = redis.scriptLoad(LOOKUP_SCRIPT);
 			
 			//Putting in default values as a lazy way to avoid NullPointerExceptions
-			redis.flushdb();
-			//List of ports on which Squid is running.
-			//Each port corresponds to a different ext. IP address through which a request could be made.
-			redis.hmset("proxies", Map.of(
-					"3129", "0",
-					"3130", "0",
-					"3131", "0",
-					"3132", "0",
-					"3133", "0",
-					"3134", "0",
-					"3315", "0",
-					"3136", "0"
-			));
+			if (!cluster) {
+				redis.flushdb();
+			}
 			//Statistics...
-			redis.hmset("stats", Map.of(
+			Map<String, String> stats = Map.of(
 					"profile_from_mem", "0",
 					"profile_from_api", "0",
 					"uuid_from_mem", "0",
@@ -36,119 +78,535 @@ public class Redis {
 					"name_profile_from_mem", "0",
 					"name_profile_from_api", "0",
 					"served_from_invalid_cache", "0"
-			));
-			//Had to do this because Redis wouldn't accept an empty map.
-			redis.hmset("statusCodes", Map.of("200 OK", "0"));
+			);
+			if (cluster) {
+				stats.forEach((field, value) -> redis.hsetnx("stats", field, value));
+				redis.hsetnx("statusCodes", "200 OK", "0");
+			} else {
+				redis.hmset("stats", stats);
+				//Had to do this because Redis wouldn't accept an empty map.
+				redis.hmset("statusCodes", Map.of("200 OK", "0"));
+			}
 		}
 	}
 	
 	//=====================STATISTICS METHODS=====================//
-	private static int getIntStats(String... fields) {
-		try (WrappedRedis redis = WrappedRedis.get(0)) {
-			return Arrays.stream(fields)
-					.mapToInt(field -> Integer.parseInt(redis.get().hget("stats", field)))
-					.sum();
+	//Reads both stats hashes and the size of every dataset. All commands are sent before any reply is waited for.
+	@Override
+	public Cache.StoredStats readStats() {
+		List<WrappedRedis> connections = new ArrayList<>(6);
+		try {
+			WrappedRedis stats = WrappedRedis.get(0);
+			connections.add(stats);
+			RedisFuture<Map<String, String>> statsReply = stats.async().hgetall("stats");
+			RedisFuture<Map<String, String>> statusCodesReply = stats.async().hgetall("statusCodes");
+			List<RedisFuture<Long>> sizeReplies = new ArrayList<>(5);
+			if (!unified) {
+				for (int db = 1; db <= 5; db++) {
+					WrappedRedis data = WrappedRedis.get(db);
+					connections.add(data);
+					sizeReplies.add(data.async().dbsize());
+				}
+			}
+			long[] sizes = unified ? countKeys() : new long[6];
+			for (int db = 1; db <= 5 && !unified; db++) {
+				sizes[db] = sizeReplies.get(db - 1).get(10, TimeUnit.SECONDS);
+			}
+			return new Cache.StoredStats(statsReply.get(10, TimeUnit.SECONDS), statusCodesReply.get(10, TimeUnit.SECONDS), sizes);
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			throw new RuntimeException(e);
+		} finally {
+			connections.forEach(WrappedRedis::close);
 		}
 	}
 	
-	static int getRequestsFromMemory() {
-		return getIntStats("profile_from_mem", "uuid_from_mem", "names_from_mem", "name_profile_from_mem", "served_from_invalid_cache");
+	//Only called from the stats snapshot, one at a time.
+	private long[] countKeys() {
+		long now = System.currentTimeMillis();
+		if (keyCounts != null && now - keysCounted < KEY_COUNT_INTERVAL) {
+			return keyCounts.clone();
+		}
+		long[] counts = new long[6];
+		try (WrappedRedis redis = WrappedRedis.get(UNIFIED_DB)) {
+			ScanArgs args = ScanArgs.Builder.limit(1000);
+			KeyScanCursor<String> cursor = redis.get().scan(args);
+			countPrefixes(cursor.getKeys(), counts);
+			while (!cursor.isFinished()) {
+				cursor = redis.get().scan(ScanCursor.of(cursor.getCursor()), args);
+				countPrefixes(cursor.getKeys(), counts);
+			}
+		}
+		keyCounts = counts;
+		keysCounted = now;
+		return counts.clone();
 	}
 	
-	static int getRequestsFromApi() {
-		return getIntStats("profile_from_api", "uuid_from_api", "names_from_api", "name_profile_from_api");
+	private static void countPrefixes(List<String> keys, long[] counts) {
+		for (String key : keys) {
+			for (int db = 1; db < PREFIXES.length; db++) {
+				if (key.startsWith(PREFIXES[db])) {
+					counts[db]++;
+					break;
+				}
+			}
+		}
 	}
 	
-	static int getOutgoingRequests() {
-		try (WrappedRedis redis = WrappedRedis.get(0)) {
-			return redis.get().hgetall("statusCodes").values().stream().mapToInt(Integer::parseInt).sum();
+	@Override
+	public void putInvalid(String identifier, long time) {
+		if (unified) {
+			write(UNIFIED_DB, redis -> redis.set(PREFIXES[5] + identifier, Long.toString(time), SetArgs.Builder.ex(MojangPipe.getInvalidLifetime() * 60L)));
+			return;
 		}
+		write(5, redis -> {
+			redis.hmset(identifier, Map.of("time", Long.toString(time)));
+			return redis.expire(identifier, MojangPipe.getInvalidLifetime() * 60L);
+		});
 	}
 	
-	static int getProfileRequestsCount() {
-		return getIntStats("profile_from_api", "profile_from_mem");
+	//The stats hashes are updated with all commands sent before any reply is waited for.
+	@Override
+	public void incrStats(Map<String, Long> stats, Map<String, Long> statusCodes) {
+		try (WrappedRedis wrapped = WrappedRedis.get(0)) {
+			RedisAsyncCommands<String, String> redis = wrapped.async();
+			List<RedisFuture<Long>> replies = new ArrayList<>(stats.size() + statusCodes.size());
+			stats.forEach((field, delta) -> replies.add(redis.hincrby("stats", field, delta)));
+			statusCodes.forEach((field, delta) -> replies.add(redis.hincrby("statusCodes", field, delta)));
+			for (RedisFuture<Long> reply : replies) {
+				reply.get(10, TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			throw new RuntimeException(e);
+		}
 	}
 	
-	static int getNameRequestsCount() {
-		return getIntStats("uuid_from_api", "uuid_from_mem");
+	//Runs a command through the async API, keeping the connection until the reply arrives.
+	//In blocking mode the reply is waited for, so whatever is chained on the result runs on the calling thread.
+	static <T> CompletableFuture<T> command(int db, Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+		return run(db, redis -> command.apply(redis.async()));
 	}
 	
-	static int getNamesRequestsCount() {
-		return getIntStats("names_from_api", "names_from_mem");
+	//Same as command, for values encoded by the codec.
+	private static <T> CompletableFuture<T> binaryCommand(int db, Function<RedisAsyncCommands<String, byte[]>, RedisFuture<T>> command) {
+		return run(db, redis -> command.apply(redis.binaryAsync()));
 	}
 	
-	static int getNameProfileRequestsCount() {
-		return getIntStats("name_profile_from_api", "name_profile_from_mem");
+	private static <T> CompletableFuture<T> run(int db, Function<WrappedRedis, RedisFuture<T>> command) {
+		WrappedRedis redis = WrappedRedis.get(db);
+		CompletableFuture<T> future;
+		try {
+			future = command.apply(redis).toCompletableFuture().whenComplete((value, error) -> redis.close());
+		} catch (RuntimeException e) {
+			redis.close();
+			throw e;
+		}
+		if (MojangPipe.isAsync()) {
+			return future;
+		}
+		try {
+			return CompletableFuture.completedFuture(future.join());
+		} catch (CompletionException e) {
+			return CompletableFuture.failedFuture(e.getCause());
+		}
 	}
 	
-	static String get429Percentage() {
-		String redisQuery;
-		try (WrappedRedis redis = WrappedRedis.get(0)) {
-			redisQuery = redis.get().hget("statusCodes", "429 Too Many Requests");
+	//Writes only block the caller in blocking mode, in async mode their replies aren't waited for.
+	private static <T> void write(int db, Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+		finish(command(db, command));
+	}
+	
+	private static <T> void binaryWrite(int db, Function<RedisAsyncCommands<String, byte[]>, RedisFuture<T>> command) {
+		finish(binaryCommand(db, command));
+	}
+	
+	static void finish(CompletableFuture<?> future) {
+		if (MojangPipe.isAsync()) {
+			future.exceptionally(error -> {
+				error.printStackTrace();
+				return null;
+			});
+		} else {
+			future.join();
+		}
+	}
+	
+	//=================NORMAL OPERATIONS METHODS=================//
+	@Override
+	public CompletableFuture<Cache.Lookup> lookup(String identifier, int db, long time) {
+		return unified ? lookupUnified(identifier, db, time) : lookupLegacy(identifier, db, time);
+	}
+	
+	//With the negative cache, identifiers it doesn't know as invalid are looked up in their dataset first, and the
+	//invalid cache (which other instances write to as well) is only read when that misses.
+	private CompletableFuture<Cache.Lookup> lookupLegacy(String identifier, int db, long time) {
+		NegativeCache.Answer known = NegativeCache.check(identifier, time);
+		if (known == NegativeCache.Answer.INVALID) {
+			return CompletableFuture.completedFuture(Cache.Lookup.INVALID);
 		}
-		if (redisQuery == null) {
-			return "0.000";
+		if (known == NegativeCache.Answer.ABSENT) {
+			return read(identifier, db).thenCompose(cached -> {
+				Cache.Lookup lookup = cached == null ? Cache.Lookup.MISS : Cache.Lookup.of(cached, time);
+				return lookup.isHit() ? CompletableFuture.completedFuture(lookup) : readInvalid(identifier, time);
+			});
 		}
-		int ratelimitsHit = Integer.parseInt(redisQuery);
-		int totalRequests = getOutgoingRequests();
-		return new DecimalFormat(".###").format(((double) ratelimitsHit / totalRequests) * 100);
+		return read(identifier, 5).thenCompose(invalid -> {
+			if (invalid != null && (time - invalid.getTime()) < (MojangPipe.getInvalidLifetime() * 60000L)) {
+				return CompletableFuture.completedFuture(Cache.Lookup.INVALID);
+			}
+			return read(identifier, db).thenApply(cached -> cached == null ? Cache.Lookup.MISS : Cache.Lookup.of(cached, time));
+		});
 	}
 	
-	static int dbsize(int db) {
-		try (WrappedRedis redis = WrappedRedis.get(db)) {
-			return redis.get().dbsize().intValue();
+	private CompletableFuture<Cache.Lookup> lookupUnified(String identifier, int db, long time) {
+		//The script reads the invalid key in the same round trip, so only confirmed invalid identifiers save anything here.
+		if (NegativeCache.check(identifier, time) == NegativeCache.Answer.INVALID) {
+			return CompletableFuture.completedFuture(Cache.Lookup.INVALID);
+		}
+		LocalCache.Entry invalid = LocalCache.get(identifier, 5);
+		if (invalid != null && (time - invalid.getTime()) < (MojangPipe.getInvalidLifetime() * 60000L)) {
+			return CompletableFuture.completedFuture(Cache.Lookup.INVALID);
 		}
+		LocalCache.Entry cached = LocalCache.get(identifier, db);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(Cache.Lookup.of(cached, time));
+		}
+		String[] keys = codec != null
+				? new String[]{PREFIXES[5] + identifier, PREFIXES[db] + identifier}
+				: Cache.hasTextures(db)
+				? new String[]{PREFIXES[5] + identifier, PREFIXES[db] + identifier, TAGS_PREFIX + PREFIXES[db] + identifier, TEXTURES_PREFIX + PREFIXES[db] + identifier}
+				: new String[]{PREFIXES[5] + identifier, PREFIXES[db] + identifier, TAGS_PREFIX + PREFIXES[db] + identifier};
+		return run(UNIFIED_DB, redis -> scripting(redis).<List<Object>>evalsha(lookupSha, ScriptOutputType.MULTI, keys))
+				.handle((result, error) -> {
+					if (error == null) {
+						return CompletableFuture.completedFuture(result);
+					}
+					Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+					if (cause instanceof RedisNoScriptException) {
+						//Script cache was flushed, e.g. by a Redis restart.
+						return run(UNIFIED_DB, redis -> scripting(redis).<List<Object>>eval(LOOKUP_SCRIPT, ScriptOutputType.MULTI, keys));
+					}
+					return CompletableFuture.<List<Object>>failedFuture(cause);
+				})
+				.thenCompose(future -> future)
+				.thenApply(result -> {
+					long status = (Long) result.get(0);
+					if (status == 0) {
+						Cache.rememberInvalid(identifier, time + (Long) result.get(1) - Cache.lifetime(5));
+						return Cache.Lookup.INVALID;
+					}
+					if (status == 1) {
+						long requested = time + (Long) result.get(1) - Cache.lifetime(db);
+						String json;
+						String textures = null;
+						String[] tags;
+						if (codec == null) {
+							json = (String) result.get(2);
+							tags = splitTags(result.size() > 3 ? (String) result.get(3) : null);
+							textures = result.size() > 4 && result.get(4) != null ? (String) result.get(4) : null;
+						} else {
+							ValueCodec.Value value = codec.decode((byte[]) result.get(2));
+							requested = value.getTime() >= 0 ? value.getTime() : requested;
+							json = value.getJson();
+							textures = value.getTextures();
+							tags = new String[]{value.getJsonTag(), value.getTexturesTag()};
+						}
+						if (textures == null) {
+							textures = Cache.deriveTextures(db, json);
+						}
+						return Cache.Lookup.of(LocalCache.put(identifier, db, requested, json, textures, tags[0], tags[1]), time);
+					}
+					return Cache.Lookup.MISS;
+				});
+	}
+	
+	//Caches a value read through the codec. Values stored before the tags were get them worked out here.
+	private static LocalCache.Entry cache(String identifier, int db, ValueCodec.Value value) {
+		String textures = value.getTextures() != null ? value.getTextures() : Cache.deriveTextures(db, value.getJson());
+		return LocalCache.put(identifier, db, value.getTime(), value.getJson(), textures, value.getJsonTag(), value.getTexturesTag());
 	}
 	
-	private static void logInvalidRequest(String identifier, long time) {
-		try (WrappedRedis redis = WrappedRedis.get(5)) {
-			redis.get().hmset(identifier, Map.of("time", Long.toString(time)));
-			redis.get().expire(identifier, MojangPipe.getInvalidLifetime() * 60L);
+	//The json and textures tags of a tags key, nulls for the ones that aren't there.
+	private static String[] splitTags(String tags) {
+		if (tags == null) {
+			return new String[2];
 		}
+		int space = tags.indexOf(' ');
+		return space < 0 ? new String[]{tags, null} : new String[]{tags.substring(0, space), tags.substring(space + 1)};
 	}
 	
-	static void logStatusMessage(String statusMessage) {
-		try (WrappedRedis redis = WrappedRedis.get(0)) {
-			redis.get().hincrby("statusCodes", statusMessage, 1);
+	//What the local cache doesn't have is read in one pipelined round trip per connection: an MGET, or HMGETs for hashes.
+	//Entries that can't be told apart from misses that way (older formats, or nothing stored at all with a codec in legacy
+	//mode) are left null.
+	@Override
+	public CompletableFuture<Cache.Lookup[]> lookupAll(List<String> identifiers, int db, long time) {
+		return unified ? readAllUnified(identifiers, db, time) : readAllLegacy(identifiers, db, time);
+	}
+	
+	//One MGET for the invalid and data keys. Without a codec the request times are derived from the TTLs,
+	//which are sent along with it, and the tags keys (and textures keys of profiles) are part of the MGET.
+	private CompletableFuture<Cache.Lookup[]> readAllUnified(List<String> identifiers, int db, long time) {
+		int count = identifiers.size();
+		boolean withTextures = Cache.hasTextures(db) && codec == null;
+		String[] keys = new String[count * (codec != null ? 2 : withTextures ? 4 : 3)];
+		for (int i = 0; i < count; i++) {
+			keys[i] = PREFIXES[5] + identifiers.get(i);
+			keys[count + i] = PREFIXES[db] + identifiers.get(i);
+			if (codec == null) {
+				keys[count * 2 + i] = TAGS_PREFIX + PREFIXES[db] + identifiers.get(i);
+			}
+			if (withTextures) {
+				keys[count * 3 + i] = TEXTURES_PREFIX + PREFIXES[db] + identifiers.get(i);
+			}
 		}
+		if (codec != null) {
+			return binaryCommand(UNIFIED_DB, redis -> redis.mget(keys)).thenApply(values -> {
+				Cache.Lookup[] lookups = new Cache.Lookup[count];
+				for (int i = 0; i < count; i++) {
+					String identifier = identifiers.get(i);
+					if (values.get(i).hasValue()) {
+						lookups[i] = Cache.invalid(identifier, Long.parseLong(new String(values.get(i).getValue(), StandardCharsets.UTF_8)), time);
+					}
+					if (lookups[i] != null) {
+						continue;
+					}
+					if (!values.get(count + i).hasValue()) {
+						lookups[i] = Cache.Lookup.MISS;
+						continue;
+					}
+					ValueCodec.Value value = codec.decode(values.get(count + i).getValue());
+					//Plain json from before the codec is left to lookupAsync.
+					if (value.getTime() >= 0) {
+						lookups[i] = Cache.Lookup.of(cache(identifier, db, value), time);
+					}
+				}
+				return lookups;
+			});
+		}
+		List<RedisFuture<Long>> ttls = new ArrayList<>(count);
+		return run(UNIFIED_DB, redis -> {
+			for (String identifier : identifiers) {
+				ttls.add(redis.async().pttl(PREFIXES[db] + identifier));
+			}
+			return redis.async().mget(keys);
+		}).thenApply(values -> {
+			Cache.Lookup[] lookups = new Cache.Lookup[count];
+			for (int i = 0; i < count; i++) {
+				String identifier = identifiers.get(i);
+				if (values.get(i).hasValue()) {
+					lookups[i] = Cache.invalid(identifier, Long.parseLong(values.get(i).getValue()), time);
+				}
+				if (lookups[i] != null) {
+					continue;
+				}
+				long ttl = ttls.get(i).toCompletableFuture().join();
+				if (!values.get(count + i).hasValue() || ttl <= 0) {
+					lookups[i] = Cache.Lookup.MISS;
+					continue;
+				}
+				String json = values.get(count + i).getValue();
+				String[] tags = splitTags(values.get(count * 2 + i).getValueOrElse(null));
+				String textures = withTextures && values.get(count * 3 + i).hasValue() ? values.get(count * 3 + i).getValue() : Cache.deriveTextures(db, json);
+				lookups[i] = Cache.Lookup.of(LocalCache.put(identifier, db, time + ttl - Cache.lifetime(db), json, textures, tags[0], tags[1]), time);
+			}
+			return lookups;
+		});
 	}
 	
-	static void incrStats(String stat) {
-		MojangPipe.getThreadPool().execute(() -> {
-			try (WrappedRedis redis = WrappedRedis.get(0)) {
-				redis.get().hincrby("stats", stat, 1);
+	//HMGETs of the invalid entries and the data entries (or an MGET of them with a codec), on their two connections at once.
+	private CompletableFuture<Cache.Lookup[]> readAllLegacy(List<String> identifiers, int db, long time) {
+		int count = identifiers.size();
+		CompletableFuture<List<List<KeyValue<String, String>>>> invalids = hmgetAll(5, identifiers, "time");
+		if (codec != null) {
+			//Misses look the same as entries still stored as hashes here, so they're left to lookupAsync too.
+			return invalids.thenCombine(binaryCommand(db, redis -> redis.mget(identifiers.toArray(new String[0]))), (invalidValues, values) -> {
+				Cache.Lookup[] lookups = new Cache.Lookup[count];
+				for (int i = 0; i < count; i++) {
+					String identifier = identifiers.get(i);
+					lookups[i] = Cache.invalid(identifier, Long.parseLong(invalidValues.get(i).get(0).getValueOrElse("0")), time);
+					if (lookups[i] != null || !values.get(i).hasValue()) {
+						continue;
+					}
+					lookups[i] = Cache.Lookup.of(cache(identifier, db, codec.decode(values.get(i).getValue())), time);
+				}
+				return lookups;
+			});
+		}
+		return invalids.thenCombine(hmgetAll(db, identifiers, "time", "json", "textures", "jsonTag", "texturesTag"), (invalidValues, values) -> {
+			Cache.Lookup[] lookups = new Cache.Lookup[count];
+			for (int i = 0; i < count; i++) {
+				String identifier = identifiers.get(i);
+				lookups[i] = Cache.invalid(identifier, Long.parseLong(invalidValues.get(i).get(0).getValueOrElse("0")), time);
+				if (lookups[i] != null) {
+					continue;
+				}
+				List<KeyValue<String, String>> fields = values.get(i);
+				long requested = Long.parseLong(fields.get(0).getValueOrElse("0"));
+				if (requested == 0) {
+					lookups[i] = Cache.Lookup.MISS;
+					continue;
+				}
+				String json = fields.get(1).getValueOrElse("");
+				String textures = fields.get(2).hasValue() ? fields.get(2).getValue() : Cache.deriveTextures(db, json);
+				lookups[i] = Cache.Lookup.of(LocalCache.put(identifier, db, requested, json, textures, fields.get(3).getValueOrElse(null), fields.get(4).getValueOrElse(null)), time);
 			}
+			return lookups;
 		});
 	}
 	
-	//=================NORMAL OPERATIONS METHODS=================//
-	static long getLastRequest(String identifier, int db) {
-		try (WrappedRedis redis = WrappedRedis.get(db)) {
-			return Long.parseLong(redis.get().hmget(identifier, "time").get(0).getValueOrElse("0"));
+	//HMGETs on one connection, all sent before the first reply is read.
+	private static CompletableFuture<List<List<KeyValue<String, String>>>> hmgetAll(int db, List<String> identifiers, String... fields) {
+		List<RedisFuture<List<KeyValue<String, String>>>> replies = new ArrayList<>(identifiers.size());
+		return run(db, redis -> {
+			for (String identifier : identifiers) {
+				replies.add(redis.async().hmget(identifier, fields));
+			}
+			return replies.get(replies.size() - 1);
+		}).thenApply(last -> {
+			List<List<KeyValue<String, String>>> values = new ArrayList<>(replies.size());
+			replies.forEach(reply -> values.add(reply.toCompletableFuture().join()));
+			return values;
+		});
+	}
+	
+	//The invalid cache check of lookupLegacy, on its own.
+	private CompletableFuture<Cache.Lookup> readInvalid(String identifier, long time) {
+		return read(identifier, 5).thenApply(invalid ->
+				invalid != null && (time - invalid.getTime()) < Cache.lifetime(5) ? Cache.Lookup.INVALID : Cache.Lookup.MISS);
+	}
+	
+	//The lookup script returns values in the format they're stored in.
+	private RedisScriptingAsyncCommands<String, ?> scripting(WrappedRedis redis) {
+		return codec == null ? redis.async() : redis.binaryAsync();
+	}
+	
+	//Reads a legacy entry through the local cache. Completes with null if there's none.
+	private CompletableFuture<LocalCache.Entry> read(String identifier, int db) {
+		return codec != null && db != 5 ? readValue(identifier, db) : readHash(identifier, db);
+	}
+	
+	//Reads the timestamp, json and textures of a legacy hash entry, through the local cache. Completes with null if there's none.
+	private CompletableFuture<LocalCache.Entry> readHash(String identifier, int db) {
+		LocalCache.Entry cached = LocalCache.get(identifier, db);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
 		}
+		return command(db, redis -> redis.hmget(identifier, "time", "json", "textures", "jsonTag", "texturesTag")).thenApply(values -> {
+			long time = Long.parseLong(values.get(0).getValueOrElse("0"));
+			if (time == 0) {
+				return null;
+			}
+			String json = values.get(1).getValueOrElse("");
+			String textures = values.get(2).hasValue() ? values.get(2).getValue() : Cache.deriveTextures(db, json);
+			if (db == 5) {
+				NegativeCache.add(identifier, time);
+			}
+			return LocalCache.put(identifier, db, time, json, textures, values.get(3).getValueOrElse(null), values.get(4).getValueOrElse(null));
+		});
+	}
+	
+	//Reads an entry stored through the codec, in either keyspace mode, through the local cache. Completes with null if there's none.
+	//Entries stored before the codec was turned on (hashes in legacy mode, plain json in unified mode) are read too.
+	private CompletableFuture<LocalCache.Entry> readValue(String identifier, int db) {
+		LocalCache.Entry cached = LocalCache.get(identifier, db);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		int connection = unified ? UNIFIED_DB : db;
+		String key = unified ? PREFIXES[db] + identifier : identifier;
+		return binaryCommand(connection, redis -> redis.get(key)).handle((value, error) -> {
+			if (error != null) {
+				Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+				if (!unified && cause.getMessage() != null && cause.getMessage().startsWith("WRONGTYPE")) {
+					return readHash(identifier, db);
+				}
+				return CompletableFuture.<LocalCache.Entry>failedFuture(cause);
+			}
+			if (value == null) {
+				return CompletableFuture.<LocalCache.Entry>completedFuture(null);
+			}
+			ValueCodec.Value decoded = codec.decode(value);
+			if (decoded.getTime() >= 0) {
+				return CompletableFuture.completedFuture(cache(identifier, db, decoded));
+			}
+			//Plain json doesn't have its time (or tags), it's derived from the TTL like it used to be.
+			String textures = Cache.deriveTextures(db, decoded.getJson());
+			return binaryCommand(connection, redis -> redis.pttl(key)).thenApply(ttl ->
+					ttl > 0 ? LocalCache.put(identifier, db, System.currentTimeMillis() + ttl - Cache.lifetime(db), decoded.getJson(), textures, null, null) : null);
+		}).thenCompose(future -> future);
 	}
 	
-	static String getJson(String identifier, int db) {
-		try (WrappedRedis redis = WrappedRedis.get(db)) {
-			return redis.get().hmget(identifier, "json").get(0).getValueOrElse("");
+	//Only the TTL is stored with plain values in unified mode, the request time is derived from it.
+	@Override
+	public CompletableFuture<LocalCache.Entry> get(String identifier, int db) {
+		if (!unified || (codec != null && db != 5)) {
+			return read(identifier, db);
+		}
+		LocalCache.Entry cached = LocalCache.get(identifier, db);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
 		}
+		String key = PREFIXES[db] + identifier;
+		List<RedisFuture<Long>> ttl = new ArrayList<>(1);
+		List<RedisFuture<String>> tags = new ArrayList<>(1);
+		return run(UNIFIED_DB, redis -> {
+			ttl.add(redis.async().pttl(key));
+			if (db != 5) {
+				tags.add(redis.async().get(TAGS_PREFIX + key));
+			}
+			return redis.async().get(key);
+		}).thenApply(value -> {
+			long left = ttl.get(0).toCompletableFuture().join();
+			if (value == null || left <= 0) {
+				return null;
+			}
+			if (db == 5) {
+				return LocalCache.put(identifier, db, System.currentTimeMillis() + left - Cache.lifetime(db), "");
+			}
+			String[] stored = splitTags(tags.get(0).toCompletableFuture().join());
+			return LocalCache.put(identifier, db, System.currentTimeMillis() + left - Cache.lifetime(db), value, Cache.deriveTextures(db, value), stored[0], stored[1]);
+		});
 	}
 	
-	static void putJson(String identifier, long time, String json, int db) {
-		try (WrappedRedis redis = WrappedRedis.get(db)) {
-			redis.get().hmset(identifier, Map.of(
-					"time", String.valueOf(time),
-					"json", json
-			));
-			redis.get().expire(identifier, MojangPipe.getCacheLifetime() * 60L);
+	@Override
+	public void put(String identifier, int db, LocalCache.Entry entry) {
+		String textures = entry.getTextures();
+		if (codec != null) {
+			byte[] value = codec.encode(entry.getTime(), entry.getJson(), textures, entry.getJsonTag(), entry.getTexturesTag());
+			String key = unified ? PREFIXES[db] + identifier : identifier;
+			binaryWrite(unified ? UNIFIED_DB : db, redis -> redis.set(key, value, SetArgs.Builder.px(Cache.lifetime(db))));
+			return;
+		}
+		if (unified) {
+			String tags = textures == null ? entry.getJsonTag() : entry.getJsonTag() + " " + entry.getTexturesTag();
+			write(UNIFIED_DB, redis -> {
+				if (textures != null) {
+					redis.set(TEXTURES_PREFIX + PREFIXES[db] + identifier, textures, SetArgs.Builder.px(Cache.lifetime(db)));
+				}
+				redis.set(TAGS_PREFIX + PREFIXES[db] + identifier, tags, SetArgs.Builder.px(Cache.lifetime(db)));
+				return redis.set(PREFIXES[db] + identifier, entry.getJson(), SetArgs.Builder.px(Cache.lifetime(db)));
+			});
+			return;
 		}
+		Map<String, String> fields = new HashMap<>(8);
+		fields.put("time", String.valueOf(entry.getTime()));
+		fields.put("json", entry.getJson());
+		fields.put("jsonTag", entry.getJsonTag());
+		if (textures != null) {
+			fields.put("textures", textures);
+			fields.put("texturesTag", entry.getTexturesTag());
+		}
+		write(db, redis -> {
+			redis.hmset(identifier, fields);
+			return redis.pexpire(identifier, Cache.lifetime(db));
+		});
 	}
 	
-	static void handleStatusCode(int code, String identifier) {
-		if (code == 204) {
-			logInvalidRequest(identifier, System.currentTimeMillis());
+	@Override
+	public void removeInvalid(String identifier) {
+		if (unified) {
+			write(UNIFIED_DB, redis -> redis.del(PREFIXES[5] + identifier));
 		} else {
-			MojangPipe.newProxy();
+			write(5, redis -> redis.del(identifier));
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,101 @@
+package io.misterfix.mojangpipe;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+//Refreshes entries that were served stale in the background. Refreshes are queued (once per key) and started at a
+//limited rate on threads of their own, and only while no foreground misses are waiting for admission or for the
+//upstream dispatcher. In blocking mode a refresh holds its thread until Mojang answers, so the threads are the limit.
+class Refresher {
+	private static final int TICKS_PER_SECOND = 10;
+	private static final int MAX_QUEUED = 10000;
+	private static final Map<String, Supplier<CompletableFuture<Result>>> queue = new LinkedHashMap<>();
+	private static final AtomicInteger inFlight = new AtomicInteger();
+	private static final LongAdder stale = new LongAdder();
+	private static final LongAdder refreshes = new LongAdder();
+	private static final LongAdder dropped = new LongAdder();
+	private static double perTick;
+	private static int maxInFlight;
+	private static ExecutorService workers;
+	private static double budget;
+	
+	static void init(int refreshesPerSecond, int concurrency) {
+		perTick = (double) refreshesPerSecond / TICKS_PER_SECOND;
+		maxInFlight = concurrency;
+		workers = Utils.executor("refresher", Math.max(1, concurrency));
+		if (MojangPipe.getStaleLifetime() > 0) {
+			MojangPipe.getThreadPool().scheduleAtFixedRate(Refresher::tick, 1000 / TICKS_PER_SECOND, 1000 / TICKS_PER_SECOND, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	//Called when a stale entry is served. The refresh goes through the same single-flight key as a foreground miss.
+	static void schedule(String key, Supplier<CompletableFuture<Result>> fetch) {
+		stale.increment();
+		synchronized (queue) {
+			if (queue.containsKey(key)) {
+				return;
+			}
+			if (queue.size() >= MAX_QUEUED) {
+				dropped.increment();
+				return;
+			}
+			queue.put(key, fetch);
+		}
+	}
+	
+	private static void tick() {
+		if (Admission.getQueued() > 0 || Upstream.getQueuedCalls() > 0) {
+			return;
+		}
+		budget = Math.min(budget + perTick, Math.max(1, perTick));
+		while (budget >= 1 && inFlight.get() < maxInFlight) {
+			String key;
+			Supplier<CompletableFuture<Result>> fetch;
+			synchronized (queue) {
+				Iterator<Map.Entry<String, Supplier<CompletableFuture<Result>>>> iterator = queue.entrySet().iterator();
+				if (!iterator.hasNext()) {
+					return;
+				}
+				Map.Entry<String, Supplier<CompletableFuture<Result>>> next = iterator.next();
+				iterator.remove();
+				key = next.getKey();
+				fetch = next.getValue();
+			}
+			budget--;
+			refreshes.increment();
+			inFlight.incrementAndGet();
+			workers.execute(() -> SingleFlight.run(key, fetch).whenComplete((result, error) -> {
+				inFlight.decrementAndGet();
+				//Turned away for lack of proxy tokens, the entry gets queued again the next time it's served stale.
+				if (error != null && !Admission.isRejected(error)) {
+					error.printStackTrace();
+				}
+			}));
+		}
+	}
+	
+	static long getStale() {
+		return stale.sum();
+	}
+	
+	static long getRefreshes() {
+		return refreshes.sum();
+	}
+	
+	static long getDropped() {
+		return dropped.sum();
+	}
+	
+	static int getQueued() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+}
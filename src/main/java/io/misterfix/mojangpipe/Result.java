@@ -0,0 +1,80 @@
+package io.misterfix.mojangpipe;
+
+//Outcome of an upstream lookup, shared between all callers waiting on the same identifier.
+class Result {
+	private final int status;
+	private final String json;
+	private final byte[] bytes;
+	private final String textures;
+	private final LocalCache.Entry entry;
+	private final int proxy;
+	
+	Result(int status, String json) {
+		this(status, json, 0);
+	}
+	
+	Result(int status, String json, int proxy) {
+		this.status = status;
+		this.json = json;
+		this.bytes = null;
+		this.textures = null;
+		this.entry = null;
+		this.proxy = proxy;
+	}
+	
+	//A download's body, kept as it came.
+	Result(int status, byte[] bytes, int proxy) {
+		this.status = status;
+		this.json = "";
+		this.bytes = bytes;
+		this.textures = null;
+		this.entry = null;
+		this.proxy = proxy;
+	}
+	
+	//A result that was cached, or served from the cache.
+	Result(int status, LocalCache.Entry entry) {
+		this(status, entry, 0);
+	}
+	
+	Result(int status, LocalCache.Entry entry, int proxy) {
+		this.status = status;
+		this.json = entry.getJson();
+		this.bytes = null;
+		this.textures = entry.getTextures();
+		this.entry = entry;
+		this.proxy = proxy;
+	}
+	
+	int getStatus() {
+		return status;
+	}
+	
+	String getJson() {
+		return json;
+	}
+	
+	//The body of a download, null for everything else.
+	byte[] getBytes() {
+		return bytes;
+	}
+	
+	//The /textures representation, for profiles that came through the cache.
+	String getTextures() {
+		return textures;
+	}
+	
+	//The cache entry of a successful result, with its ETags.
+	LocalCache.Entry getEntry() {
+		return entry;
+	}
+	
+	//Port of the proxy the API answered through, 0 if it didn't come from the API.
+	int getProxy() {
+		return proxy;
+	}
+	
+	boolean isOk() {
+		return status == 200;
+	}
+}
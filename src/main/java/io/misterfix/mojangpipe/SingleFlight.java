@@ -0,0 +1,63 @@
+package io.misterfix.mojangpipe;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+//Coalesces concurrent upstream lookups for the same key: the first caller fetches,
+//everyone else arriving while that fetch is in flight gets the same result. Waiting for it goes through Admission.follow.
+class SingleFlight {
+	private static final Map<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+	private static final LongAdder coalesced = new LongAdder();
+	private static final LongAdder timeouts = new LongAdder();
+	private static long timeout = 10000;
+	
+	static void init(long timeoutMillis) {
+		timeout = timeoutMillis;
+	}
+	
+	static CompletableFuture<Result> run(String key, Supplier<CompletableFuture<Result>> fetch) {
+		CompletableFuture<Result> promise = new CompletableFuture<>();
+		CompletableFuture<Result> existing = inFlight.putIfAbsent(key, promise);
+		if (existing != null) {
+			coalesced.increment();
+			return Admission.follow(() -> existing.copy().completeOnTimeout(null, timeout, TimeUnit.MILLISECONDS).thenApply(result -> {
+				if (result == null) {
+					timeouts.increment();
+					return new Result(504, "");
+				}
+				return result;
+			}));
+		}
+		CompletableFuture<Result> fetched;
+		try {
+			fetched = fetch.get();
+		} catch (RuntimeException e) {
+			fetched = CompletableFuture.failedFuture(e);
+		}
+		fetched.whenComplete((result, error) -> {
+			inFlight.remove(key, promise);
+			if (error != null) {
+				promise.completeExceptionally(error);
+			} else {
+				promise.complete(result);
+			}
+		});
+		return promise;
+	}
+	
+	static int getInFlight() {
+		return inFlight.size();
+	}
+	
+	static long getCoalesced() {
+		return coalesced.sum();
+	}
+	
+	static long getTimeouts() {
+		return timeouts.sum();
+	}
+}
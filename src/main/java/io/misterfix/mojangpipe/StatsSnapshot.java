@@ -0,0 +1,183 @@
+package io.misterfix.mojangpipe;
+
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//What /stats shows from Redis, read in the background every few seconds so page views don't touch Redis.
+//The snapshots of the last hour are kept to work out hit ratio and 429 rate over sliding windows.
+class StatsSnapshot {
+	static final int[] WINDOW_MINUTES = {1, 5, 60};
+	private static final Deque<StatsSnapshot> history = new ArrayDeque<>();
+	private static volatile StatsSnapshot current;
+	private final long time;
+	private final Map<String, String> stats;
+	private final Map<String, String> statusCodes;
+	private final long[] sizes;
+	private final double[] hitRatios = new double[WINDOW_MINUTES.length];
+	private final double[] ratelimitRates = new double[WINDOW_MINUTES.length];
+	
+	private StatsSnapshot(long time, Map<String, String> stats, Map<String, String> statusCodes, long[] sizes) {
+		this.time = time;
+		this.stats = stats;
+		this.statusCodes = statusCodes;
+		this.sizes = sizes;
+	}
+	
+	static void init(int intervalSeconds) {
+		refresh();
+		MojangPipe.getThreadPool().scheduleWithFixedDelay(() -> {
+			try {
+				refresh();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+	
+	private static void refresh() {
+		Cache.StoredStats stored = Cache.readStats();
+		StatsSnapshot snapshot = new StatsSnapshot(System.currentTimeMillis(), stored.getStats(), stored.getStatusCodes(), stored.getSizes());
+		history.addLast(snapshot);
+		long oldest = snapshot.time - TimeUnit.MINUTES.toMillis(WINDOW_MINUTES[WINDOW_MINUTES.length - 1]);
+		//Keeps one snapshot from before the longest window, that's the one it's measured from.
+		while (history.size() > 1) {
+			Iterator<StatsSnapshot> iterator = history.iterator();
+			iterator.next();
+			if (iterator.next().time > oldest) {
+				break;
+			}
+			history.removeFirst();
+		}
+		for (int i = 0; i < WINDOW_MINUTES.length; i++) {
+			StatsSnapshot start = windowStart(snapshot.time - TimeUnit.MINUTES.toMillis(WINDOW_MINUTES[i]));
+			snapshot.hitRatios[i] = ratio(snapshot.getRequestsFromMemory() - start.getRequestsFromMemory(),
+					snapshot.getRequestsFromMemory() + snapshot.getRequestsFromApi() - start.getRequestsFromMemory() - start.getRequestsFromApi());
+			snapshot.ratelimitRates[i] = ratio(snapshot.getRatelimited() - start.getRatelimited(), snapshot.getOutgoingRequests() - start.getOutgoingRequests());
+		}
+		current = snapshot;
+	}
+	
+	//The newest snapshot taken at or before the start of the window, or the oldest one if the window goes back further than that.
+	private static StatsSnapshot windowStart(long since) {
+		StatsSnapshot start = history.getFirst();
+		for (StatsSnapshot snapshot : history) {
+			if (snapshot.time > since) {
+				break;
+			}
+			start = snapshot;
+		}
+		return start;
+	}
+	
+	private static double ratio(long part, long total) {
+		return total == 0 ? 0 : (double) part / total * 100;
+	}
+	
+	static StatsSnapshot get() {
+		return current;
+	}
+	
+	private long getStat(String... fields) {
+		long sum = 0;
+		for (String field : fields) {
+			sum += Long.parseLong(stats.getOrDefault(field, "0"));
+		}
+		return sum;
+	}
+	
+	long getTime() {
+		return time;
+	}
+	
+	long getRequestsFromMemory() {
+		return getStat("profile_from_mem", "uuid_from_mem", "names_from_mem", "name_profile_from_mem", "served_from_invalid_cache");
+	}
+	
+	long getRequestsFromApi() {
+		return getStat("profile_from_api", "uuid_from_api", "names_from_api", "name_profile_from_api");
+	}
+	
+	long getOutgoingRequests() {
+		return statusCodes.values().stream().mapToLong(Long::parseLong).sum();
+	}
+	
+	long getRatelimited() {
+		return Long.parseLong(statusCodes.getOrDefault("429 Too Many Requests", "0"));
+	}
+	
+	double get429Percentage() {
+		return ratio(getRatelimited(), getOutgoingRequests());
+	}
+	
+	long getProfileRequestsCount() {
+		return getStat("profile_from_api", "profile_from_mem");
+	}
+	
+	long getNameRequestsCount() {
+		return getStat("uuid_from_api", "uuid_from_mem");
+	}
+	
+	long getNamesRequestsCount() {
+		return getStat("names_from_api", "names_from_mem");
+	}
+	
+	long getNameProfileRequestsCount() {
+		return getStat("name_profile_from_api", "name_profile_from_mem");
+	}
+	
+	long getTotalRequestsCount() {
+		return getProfileRequestsCount() + getNameRequestsCount() + getNamesRequestsCount() + getNameProfileRequestsCount();
+	}
+	
+	Map<String, String> getStatusCodes() {
+		return statusCodes;
+	}
+	
+	//Number of entries in the dataset of the given legacy db number.
+	long getSize(int db) {
+		return sizes[db];
+	}
+	
+	//Share of requests served from memory over the window at the given index of WINDOW_MINUTES, in percent.
+	double getHitRatio(int window) {
+		return hitRatios[window];
+	}
+	
+	//Share of outgoing requests that got a 429 over the window at the given index of WINDOW_MINUTES, in percent.
+	double getRatelimitRate(int window) {
+		return ratelimitRates[window];
+	}
+	
+	JSONObject toJson() {
+		JSONObject windows = new JSONObject();
+		for (int i = 0; i < WINDOW_MINUTES.length; i++) {
+			windows.put(WINDOW_MINUTES[i] + "m", new JSONObject()
+					.put("hitRatio", hitRatios[i])
+					.put("ratelimitRate", ratelimitRates[i]));
+		}
+		return new JSONObject()
+				.put("time", time)
+				.put("requestsFromMemory", getRequestsFromMemory())
+				.put("requestsFromApi", getRequestsFromApi())
+				.put("outgoingRequests", getOutgoingRequests())
+				.put("ratelimitRate", get429Percentage())
+				.put("windows", windows)
+				.put("requests", new JSONObject()
+						.put("profile", getProfileRequestsCount())
+						.put("uuid", getNameRequestsCount())
+						.put("names", getNamesRequestsCount())
+						.put("nameProfile", getNameProfileRequestsCount())
+						.put("total", getTotalRequestsCount()))
+				.put("stored", new JSONObject()
+						.put("profiles", sizes[1])
+						.put("uuids", sizes[2])
+						.put("names", sizes[3])
+						.put("invalid", sizes[5]))
+				.put("statusCodes", statusCodes);
+	}
+}
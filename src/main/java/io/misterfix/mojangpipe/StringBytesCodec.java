@@ -0,0 +1,33 @@
+package io.misterfix.mojangpipe;
+
+import io.lettuce.core.codec.RedisCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//String keys with raw byte array values, for values encoded by a ValueCodec.
+class StringBytesCodec implements RedisCodec<String, byte[]> {
+	static final StringBytesCodec INSTANCE = new StringBytesCodec();
+	
+	@Override
+	public String decodeKey(ByteBuffer bytes) {
+		return StandardCharsets.UTF_8.decode(bytes).toString();
+	}
+	
+	@Override
+	public byte[] decodeValue(ByteBuffer bytes) {
+		byte[] value = new byte[bytes.remaining()];
+		bytes.get(value);
+		return value;
+	}
+	
+	@Override
+	public ByteBuffer encodeKey(String key) {
+		return ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@Override
+	public ByteBuffer encodeValue(byte[] value) {
+		return ByteBuffer.wrap(value);
+	}
+}
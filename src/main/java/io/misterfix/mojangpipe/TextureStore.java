@@ -0,0 +1,338 @@
+package io.misterfix.mojangpipe;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.util.Callback;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+//Skin and cape images from textures.minecraft.net, kept on disk under their texture hash (ab/abcdef....png).
+//A hash always stands for the same image, so nothing ever goes stale: the least recently used images are only
+//deleted to keep the store under its size. Files are sent straight from the page cache, mapped and handed to Jetty.
+class TextureStore {
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{16,64}");
+	private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	//A file's modification time is its last use, so the order survives restarts. It's only updated this often.
+	private static final long TOUCH_INTERVAL = TimeUnit.HOURS.toMillis(1);
+	//Mappings are kept for this many of the most recently used images. Every one is a memory map of its own,
+	//and a process can only have so many of those.
+	private static final int MAX_MAPPED = 4096;
+	//Every stored image by hash, least recently used first. Guarded by itself, like the size and the mappings.
+	private static final LinkedHashMap<String, Stored> entries = new LinkedHashMap<>(1024, 0.75f, true);
+	private static final LinkedHashMap<String, ByteBuffer> mapped = new LinkedHashMap<>(1024, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ByteBuffer> eldest) {
+			return size() > MAX_MAPPED;
+		}
+	};
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder evictions = new LongAdder();
+	private static long usedBytes;
+	private static long maxBytes;
+	private static Path directory;
+	private static String textureServer;
+	
+	static void init(Path storeDirectory, long maxSizeBytes, String server) {
+		directory = storeDirectory;
+		maxBytes = maxSizeBytes;
+		textureServer = server;
+		try {
+			Files.createDirectories(directory);
+			load();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't open the texture store in " + directory, e);
+		}
+	}
+	
+	static boolean isEnabled() {
+		return directory != null;
+	}
+	
+	static boolean isHash(String hash) {
+		return HASH.matcher(hash).matches();
+	}
+	
+	//Rebuilds the LRU order from the files' modification times. Downloads that were cut short are deleted.
+	private static void load() throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (Stream<Path> walk = Files.walk(directory, 2)) {
+			walk.filter(Files::isRegularFile).forEach(files::add);
+		}
+		Map<Path, FileTime> times = new LinkedHashMap<>();
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			if (name.endsWith(".tmp")) {
+				Files.deleteIfExists(file);
+			} else if (name.endsWith(".png") && isHash(name.substring(0, name.length() - 4))) {
+				times.put(file, Files.getLastModifiedTime(file));
+			}
+		}
+		List<Path> byUse = new ArrayList<>(times.keySet());
+		byUse.sort(Comparator.comparing(times::get));
+		synchronized (entries) {
+			for (Path file : byUse) {
+				String name = file.getFileName().toString();
+				long size = Files.size(file);
+				entries.put(name.substring(0, name.length() - 4), new Stored(size, times.get(file).toMillis()));
+				usedBytes += size;
+			}
+			evict();
+		}
+	}
+	
+	private static Path path(String hash) {
+		return directory.resolve(hash.substring(0, 2)).resolve(hash + ".png");
+	}
+	
+	//Sends the image, from the store or downloaded through the proxies first. Downloads are coalesced and go through
+	//admission control like API requests, a hash textures.minecraft.net doesn't have is passed on as its 404.
+	//Errors aren't cached by anyone, only the image itself is immutable.
+	static CompletableFuture<Void> serve(Request request, Response response, String hash, OutputStream out) {
+		long start = System.nanoTime();
+		ByteBuffer stored = map(hash);
+		if (stored != null) {
+			hits.increment();
+			Metrics.served("texture", Metrics.Source.MEM, start);
+			CompletableFuture<Void> sent = send(request, response, hash, out, stored);
+			AccessLog.log("texture", hash, AccessLog.Source.MEM, response.status(), 0, start);
+			return sent;
+		}
+		misses.increment();
+		return SingleFlight.run("texture:" + hash, () -> Admission.admit(() -> fetch(hash))).handle((result, error) -> {
+			if (Admission.isRejected(error)) {
+				response.status(503);
+				response.header("Cache-Control", "no-store");
+				response.header("Retry-After", String.valueOf(Admission.getRetryAfter(error)));
+				AccessLog.log("texture", hash, AccessLog.Source.SHED, 503, 0, start);
+				return CompletableFuture.<Void>completedFuture(null);
+			}
+			if (error != null) {
+				response.status(500);
+				response.header("Cache-Control", "no-store");
+				AccessLog.log("texture", hash, AccessLog.Source.ERROR, 500, 0, start);
+				throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+			}
+			Metrics.served("texture", Metrics.Source.API, start);
+			if (!result.isOk()) {
+				response.status(result.getStatus());
+				response.header("Cache-Control", "no-store");
+				AccessLog.log("texture", hash, AccessLog.Source.API, result.getStatus(), result.getProxy(), start);
+				return CompletableFuture.<Void>completedFuture(null);
+			}
+			//Everyone who waited on the download gets it from memory, it may not even be stored if it's bigger than the store.
+			CompletableFuture<Void> sent = send(request, response, hash, out, ByteBuffer.wrap(result.getBytes()));
+			AccessLog.log("texture", hash, AccessLog.Source.API, response.status(), result.getProxy(), start);
+			return sent;
+		}).thenCompose(Function.identity());
+	}
+	
+	//Only an image that's there gets the immutable headers, with a 304 if the client already has it.
+	//HttpOutput writes a mapped file to the socket without copying it onto the heap.
+	private static CompletableFuture<Void> send(Request request, Response response, String hash, OutputStream out, ByteBuffer content) {
+		if (HttpCaching.respondImmutable(request, response, hash)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		response.type("image/png");
+		response.raw().setContentLength(content.remaining());
+		try {
+			if (!(out instanceof HttpOutput)) {
+				byte[] bytes = new byte[content.remaining()];
+				content.get(bytes);
+				out.write(bytes);
+				return CompletableFuture.completedFuture(null);
+			}
+			if (!MojangPipe.isAsync()) {
+				((HttpOutput) out).sendContent(content);
+				return CompletableFuture.completedFuture(null);
+			}
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		CompletableFuture<Void> sent = new CompletableFuture<>();
+		((HttpOutput) out).sendContent(content, new Callback() {
+			@Override
+			public void succeeded() {
+				sent.complete(null);
+			}
+			
+			@Override
+			public void failed(Throwable error) {
+				sent.completeExceptionally(error);
+			}
+		});
+		return sent;
+	}
+	
+	//The image's mapping, for this request only. It's made while the store is locked, so the file can't be evicted
+	//in between, and stays valid after the file is deleted.
+	private static ByteBuffer map(String hash) {
+		Stored stored;
+		ByteBuffer buffer;
+		synchronized (entries) {
+			stored = entries.get(hash);
+			if (stored == null) {
+				return null;
+			}
+			buffer = mapped.get(hash);
+			if (buffer == null) {
+				try (FileChannel file = FileChannel.open(path(hash), StandardOpenOption.READ)) {
+					buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+				} catch (NoSuchFileException e) {
+					remove(hash);
+					return null;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				mapped.put(hash, buffer);
+			}
+		}
+		long now = System.currentTimeMillis();
+		if (now - stored.touched > TOUCH_INTERVAL) {
+			stored.touched = now;
+			try {
+				Files.setLastModifiedTime(path(hash), FileTime.fromMillis(now));
+			} catch (IOException ignored) {
+				//Only costs it its place in the order after a restart.
+			}
+		}
+		return buffer.duplicate();
+	}
+	
+	private static CompletableFuture<Result> fetch(String hash) {
+		return Upstream.download(textureServer + "/texture/" + hash).thenApply(result -> {
+			if (!result.isOk()) {
+				return result;
+			}
+			if (!isPng(result.getBytes())) {
+				return new Result(502, "", result.getProxy());
+			}
+			put(hash, result.getBytes());
+			return result;
+		});
+	}
+	
+	private static boolean isPng(byte[] bytes) {
+		if (bytes.length < PNG_SIGNATURE.length) {
+			return false;
+		}
+		for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+			if (bytes[i] != PNG_SIGNATURE[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	//Written next to where it goes and moved in place, so a file under its hash is always complete.
+	private static void put(String hash, byte[] png) {
+		Path file = path(hash);
+		Path temp = null;
+		try {
+			Files.createDirectories(file.getParent());
+			temp = Files.createTempFile(file.getParent(), hash, ".tmp");
+			Files.write(temp, png);
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			e.printStackTrace();
+			try {
+				if (temp != null) {
+					Files.deleteIfExists(temp);
+				}
+			} catch (IOException ignored) {
+			}
+			return;
+		}
+		synchronized (entries) {
+			Stored previous = entries.put(hash, new Stored(png.length, System.currentTimeMillis()));
+			mapped.remove(hash);
+			usedBytes += png.length - (previous == null ? 0 : previous.size);
+			evict();
+		}
+	}
+	
+	//Called with the store locked.
+	private static void evict() {
+		Iterator<Map.Entry<String, Stored>> iterator = entries.entrySet().iterator();
+		while (usedBytes > maxBytes && iterator.hasNext()) {
+			Map.Entry<String, Stored> eldest = iterator.next();
+			iterator.remove();
+			mapped.remove(eldest.getKey());
+			usedBytes -= eldest.getValue().size;
+			evictions.increment();
+			try {
+				Files.deleteIfExists(path(eldest.getKey()));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	//Called with the store locked.
+	private static void remove(String hash) {
+		Stored stored = entries.remove(hash);
+		mapped.remove(hash);
+		if (stored != null) {
+			usedBytes -= stored.size;
+		}
+	}
+	
+	static long getHits() {
+		return hits.sum();
+	}
+	
+	static long getMisses() {
+		return misses.sum();
+	}
+	
+	static long getEvictions() {
+		return evictions.sum();
+	}
+	
+	static int getEntries() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+	
+	static long getUsedBytes() {
+		synchronized (entries) {
+			return usedBytes;
+		}
+	}
+	
+	private static class Stored {
+		private final long size;
+		//Last time the file's modification time was set.
+		private volatile long touched;
+		
+		Stored(long size, long touched) {
+			this.size = size;
+			this.touched = touched;
+		}
+	}
+}
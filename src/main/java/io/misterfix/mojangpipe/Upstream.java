@@ -0,0 +1,352 @@
+package io.misterfix.mojangpipe;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+//Calls to Mojang's API, spread over the proxies by the ProxyScheduler.
+class Upstream {
+	private static final ConnectionListener listener = new ConnectionListener();
+	//The clients of every proxy port are derived from this one, so they share its dispatcher
+	//(limits and queue of async calls) and connection pool.
+	private static OkHttpClient baseClient;
+	private static final LatencyWindow latencies = new LatencyWindow();
+	private static final LongAdder retries = new LongAdder();
+	private static final LongAdder hedges = new LongAdder();
+	private static final LongAdder hedgesWon = new LongAdder();
+	private static int retryAttempts;
+	private static long retryBudgetNanos;
+	private static boolean hedging;
+	
+	static void init(int maxRequests, int retries, int retryBudgetMillis, boolean hedge) {
+		retryAttempts = retries;
+		retryBudgetNanos = TimeUnit.MILLISECONDS.toNanos(retryBudgetMillis);
+		hedging = hedge;
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(maxRequests);
+		dispatcher.setMaxRequestsPerHost(maxRequests);
+		baseClient = new OkHttpClient.Builder()
+				.dispatcher(dispatcher)
+				.connectionPool(new ConnectionPool(maxRequests, 5, TimeUnit.MINUTES))
+				.eventListener(listener)
+				.build();
+	}
+	
+	static OkHttpClient getBaseClient() {
+		return baseClient;
+	}
+	
+	static int getQueuedCalls() {
+		return baseClient.dispatcher().queuedCallsCount();
+	}
+	
+	static long getConnectionsOpened() {
+		return listener.connections.sum();
+	}
+	
+	static long getConnectionsReused() {
+		return listener.acquired.sum() - listener.connections.sum();
+	}
+	
+	static long getTlsHandshakes() {
+		return listener.handshakes.sum();
+	}
+	
+	static int getIdleConnections() {
+		return baseClient.connectionPool().idleConnectionCount();
+	}
+	
+	static long getRetries() {
+		return retries.sum();
+	}
+	
+	static long getHedges() {
+		return hedges.sum();
+	}
+	
+	static long getHedgesWon() {
+		return hedgesWon.sum();
+	}
+	
+	static long getP95Millis() {
+		return TimeUnit.NANOSECONDS.toMillis(latencies.getP95());
+	}
+	
+	//Calls the API and caches the response, or handles the error status code.
+	//In cluster mode only the node holding the lease calls the API.
+	static CompletableFuture<Result> fetch(String url, String identifier, int db) {
+		return Cluster.lease(identifier, db, () -> {
+			long time = System.currentTimeMillis();
+			return call(new Request.Builder().url(url).build()).thenApply(result -> {
+				if (!result.isOk()) {
+					Cache.handleStatusCode(result.getStatus(), identifier);
+					return result;
+				}
+				LocalCache.Entry entry = Cache.putJson(identifier, time, result.getJson(), db);
+				Cache.putIndexes(identifier, time, result.getJson(), db);
+				return new Result(200, entry, result.getProxy());
+			});
+		});
+	}
+	
+	//For files rather than API responses, the body of a 200 is kept as bytes. Files aren't under the API's rate limit,
+	//so they're sent through the ports in turn without taking their tokens, and say nothing about the ports' health.
+	//5xx and I/O failures are retried through the next port.
+	static CompletableFuture<Result> download(String url) {
+		return download(new Request.Builder().url(url).build(), retryAttempts);
+	}
+	
+	private static CompletableFuture<Result> download(Request request, int attemptsLeft) {
+		ProxyScheduler.Egress egress = ProxyScheduler.next();
+		CompletableFuture<Result> future = new CompletableFuture<>();
+		Callback callback = new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				future.completeExceptionally(e);
+			}
+			
+			@Override
+			public void onResponse(Call call, Response response) {
+				try (response) {
+					ResponseBody body = response.body();
+					byte[] bytes = body != null && response.code() == 200 ? body.bytes() : null;
+					Metrics.status(response.code() + " " + response.message());
+					future.complete(bytes != null ? new Result(200, bytes, egress.getPort()) : new Result(response.code(), "", egress.getPort()));
+				} catch (IOException e) {
+					future.completeExceptionally(e);
+				}
+			}
+		};
+		Call call = egress.getClient().newCall(request);
+		if (MojangPipe.isAsync()) {
+			call.enqueue(callback);
+		} else {
+			try {
+				callback.onResponse(call, call.execute());
+			} catch (IOException e) {
+				callback.onFailure(call, e);
+			}
+		}
+		if (attemptsLeft <= 0) {
+			return future;
+		}
+		return future.handle((result, error) -> {
+			if (error == null && result.getStatus() < 500) {
+				return CompletableFuture.completedFuture(result);
+			}
+			retries.increment();
+			return download(request, attemptsLeft - 1);
+		}).thenCompose(Function.identity());
+	}
+	
+	//Makes the call through the best proxy available, the body is only kept for 200 responses.
+	//429s, 5xx and I/O failures are retried through a different proxy as long as the retry budget allows it.
+	static CompletableFuture<Result> call(Request request) {
+		return call(request, null, retryAttempts, System.nanoTime() + retryBudgetNanos);
+	}
+	
+	//In blocking mode the proxy is picked on the calling thread too, since Redis replies are waited for there.
+	//A retry that can't get a proxy token in time gives up, and the first attempt's outcome is passed on instead.
+	private static CompletableFuture<Result> call(Request request, ProxyScheduler.Egress excluded, int attemptsLeft, long deadline) {
+		return ProxyScheduler.acquireAsync(excluded).thenCompose(egress -> {
+			CompletableFuture<Result> future = MojangPipe.isAsync() ? enqueue(request, egress) : execute(request, egress);
+			if (attemptsLeft <= 0) {
+				return future;
+			}
+			return future.handle((result, error) -> {
+				CompletableFuture<Result> outcome = error == null ? CompletableFuture.completedFuture(result) : CompletableFuture.failedFuture(error);
+				if (!isRetryable(result, error) || System.nanoTime() >= deadline) {
+					return outcome;
+				}
+				retries.increment();
+				return call(request, egress, attemptsLeft - 1, deadline).handle((retried, retryError) -> {
+					if (retryError == null) {
+						return CompletableFuture.completedFuture(retried);
+					}
+					return isExhausted(retryError) ? outcome : CompletableFuture.<Result>failedFuture(retryError);
+				}).thenCompose(Function.identity());
+			}).thenCompose(Function.identity());
+		});
+	}
+	
+	private static boolean isExhausted(Throwable error) {
+		return (error instanceof CompletionException ? error.getCause() : error) instanceof ProxyScheduler.Exhausted;
+	}
+	
+	private static boolean isRetryable(Result result, Throwable error) {
+		return error != null || result.getStatus() == 429 || result.getStatus() >= 500;
+	}
+	
+	//Blocking mode, the call is made on the calling thread.
+	private static CompletableFuture<Result> execute(Request request, ProxyScheduler.Egress egress) {
+		Call call = egress.getClient().newCall(request);
+		long start = System.nanoTime();
+		try (Response response = call.execute()) {
+			return CompletableFuture.completedFuture(read(response, egress, start));
+		} catch (IOException e) {
+			egress.record(-1, System.nanoTime() - start);
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+	
+	//Async mode, the call is enqueued on the dispatcher. With hedging on, a call that takes longer than
+	//the p95 latency of recent calls gets a duplicate through another proxy, and whichever answers first wins.
+	//A hedge is only sent if a proxy has a token to spare right away.
+	private static CompletableFuture<Result> enqueue(Request request, ProxyScheduler.Egress egress) {
+		Race race = new Race();
+		race.start(request, egress);
+		long delay = hedging ? latencies.getP95() : 0;
+		if (delay > 0) {
+			ScheduledFuture<?> hedge = MojangPipe.getThreadPool().schedule(() -> ProxyScheduler.tryAcquireAsync(egress).thenAccept(other -> {
+				if (race.start(request, other)) {
+					hedges.increment();
+				}
+			}), delay, TimeUnit.NANOSECONDS);
+			race.result.whenComplete((result, error) -> hedge.cancel(false));
+		}
+		return race.result;
+	}
+	
+	private static Result read(Response response, ProxyScheduler.Egress egress, long start) throws IOException {
+		int responseCode = response.code();
+		ResponseBody body = response.body();
+		String json = body != null && responseCode == 200 ? body.string() : "";
+		
+		long latency = System.nanoTime() - start;
+		egress.record(responseCode, latency);
+		if (responseCode != 429 && responseCode < 500) {
+			latencies.add(latency);
+		}
+		Metrics.status(responseCode + " " + response.message());
+		return new Result(responseCode, json, egress.getPort());
+	}
+	
+	//The calls made for one hedged request. The first usable response completes the result and cancels the
+	//other call, a failed one is only passed on once there's no other call left that could still succeed.
+	private static class Race {
+		private final CompletableFuture<Result> result = new CompletableFuture<>();
+		private final List<Call> calls = new ArrayList<>(2);
+		private int pending;
+		
+		boolean start(Request request, ProxyScheduler.Egress egress) {
+			Call call = egress.getClient().newCall(request);
+			synchronized (this) {
+				if (result.isDone()) {
+					return false;
+				}
+				calls.add(call);
+				pending++;
+			}
+			long start = System.nanoTime();
+			call.enqueue(new Callback() {
+				@Override
+				public void onFailure(Call call, IOException e) {
+					//The losing call of a race gets cancelled, that's not the proxy's fault.
+					if (!call.isCanceled()) {
+						egress.record(-1, System.nanoTime() - start);
+					}
+					finish(call, null, e);
+				}
+				
+				@Override
+				public void onResponse(Call call, Response response) {
+					try (response) {
+						finish(call, read(response, egress, start), null);
+					} catch (Exception e) {
+						finish(call, null, e);
+					}
+				}
+			});
+			return true;
+		}
+		
+		private void finish(Call call, Result value, Throwable error) {
+			List<Call> losers;
+			synchronized (this) {
+				pending--;
+				if (result.isDone() || (isRetryable(value, error) && pending > 0)) {
+					return;
+				}
+				if (calls.indexOf(call) > 0) {
+					hedgesWon.increment();
+				}
+				losers = new ArrayList<>(calls);
+				losers.remove(call);
+			}
+			if (error != null) {
+				result.completeExceptionally(error);
+			} else {
+				result.complete(value);
+			}
+			losers.forEach(Call::cancel);
+		}
+	}
+	
+	//Latencies of the most recent successful calls, the p95 is recomputed every so often instead of on every call.
+	private static class LatencyWindow {
+		private static final int SIZE = 1024;
+		private static final int MIN_SAMPLES = 100;
+		private static final int RECOMPUTE_EVERY = 64;
+		private final long[] samples = new long[SIZE];
+		private long count;
+		private volatile long p95;
+		
+		synchronized void add(long latencyNanos) {
+			samples[(int) (count++ % SIZE)] = latencyNanos;
+			if (count >= MIN_SAMPLES && count % RECOMPUTE_EVERY == 0) {
+				long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SIZE));
+				Arrays.sort(sorted);
+				p95 = sorted[(int) (sorted.length * 0.95)];
+			}
+		}
+		
+		//0 until enough calls have been made to tell.
+		long getP95() {
+			return p95;
+		}
+	}
+	
+	//Counts new connections and TLS handshakes against the total number of connections handed to calls.
+	private static class ConnectionListener extends EventListener {
+		private final LongAdder connections = new LongAdder();
+		private final LongAdder handshakes = new LongAdder();
+		private final LongAdder acquired = new LongAdder();
+		
+		@Override
+		public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+			connections.increment();
+		}
+		
+		@Override
+		public void secureConnectEnd(Call call, Handshake handshake) {
+			handshakes.increment();
+		}
+		
+		@Override
+		public void connectionAcquired(Call call, Connection connection) {
+			acquired.increment();
+		}
+	}
+}
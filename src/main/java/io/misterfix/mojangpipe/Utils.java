@@ -1,13 +1,10 @@
 package io.misterfix.mojangpipe;
 
-import okhttp3.OkHttpClient;
-import org.json.JSONObject;
-
-import java.net.InetSocketAddress;
-import java.net.Proxy;
 import java.text.DecimalFormat;
-import java.util.Base64;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class Utils {
 	static String readableFileSize(long size) {
@@ -19,51 +16,30 @@ class Utils {
 		return new DecimalFormat("#,##0.#").format(size / Math.pow(1024, digitGroups)) + " " + units[digitGroups];
 	}
 	
-	private static String getOptimalProxy(Map<String, String> map) {
-		String minKey = "0";
-		long minValue = Long.MAX_VALUE;
-		for (Map.Entry<String, String> entry : map.entrySet()) {
-			long value = Long.parseLong(entry.getValue());
-			if (value < minValue) {
-				minValue = value;
-				minKey = entry.getKey();
-			}
-		}
-		return minKey;
-	}
-	
-	static OkHttpClient getClient() {
-		OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder();
-		String timeStr = Long.toString(System.currentTimeMillis());
-		
-		String proxy;
-		try (WrappedRedis redis = WrappedRedis.get(0)) {
-			Map<String, String> proxies = redis.get().hgetall("proxies");
-			proxy = getOptimalProxy(proxies);
-			redis.get().hmset("proxies", Map.of(proxy, timeStr));
+	//64-bit FNV-1a, with a final mix so all bits depend on all input.
+	static long hash(byte[] bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			hash ^= b;
+			hash *= 0x100000001b3L;
 		}
-		
-		clientBuilder.proxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", Integer.parseInt(proxy))));
-		return clientBuilder.build();
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
 	}
 	
-	static String getTextures(String json) {
-		JSONObject responseJson = new JSONObject();
-		JSONObject profile = new JSONObject(json);
-		String data = profile.getJSONArray("properties").getJSONObject(0).getString("value");
-		String base64 = new String(Base64.getDecoder().decode(data));
-		JSONObject textures = new JSONObject(base64).getJSONObject("textures");
-		responseJson.put("uuid", profile.getString("id"));
-		responseJson.put("name", profile.getString("name"));
-		if (!textures.isNull("SKIN")) {
-			responseJson.put("skin", textures.getJSONObject("SKIN").getString("url"));
-		}
-		if (!textures.isNull("CAPE")) {
-			responseJson.put("cape", textures.getJSONObject("CAPE").getString("url"));
-		}
-		if (!profile.isNull("legacy")) {
-			responseJson.put("legacy", true);
-		}
-		return responseJson.toString();
+	//Up to that many daemon threads for work that waits on Mojang, which mustn't hold up the timers on the shared
+	//thread pool. They're only started when there's work and stop again after a minute without any.
+	static ExecutorService executor(String name, int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
 	}
 }
@@ -0,0 +1,181 @@
+package io.misterfix.mojangpipe;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//How cached values are stored in Redis with --valueCodec. "json" is the original layout (a hash with time and json fields
+//in legacy mode, the plain json in unified mode) and has no codec. The others store one framed binary value per entry:
+//a format byte, the time as a fixed long, then the json, textures and their ETags, deflated with "deflate".
+interface ValueCodec {
+	byte[] encode(long time, String json, String textures, String jsonTag, String texturesTag);
+	
+	//Also reads values stored as plain json text by unified mode without a codec, their time is -1.
+	Value decode(byte[] value);
+	
+	static ValueCodec forName(String name) {
+		switch (name) {
+			case "json":
+				return null;
+			case "binary":
+				return new Framed(false);
+			case "deflate":
+				return new Framed(true);
+			default:
+				throw new IllegalArgumentException("Unknown value codec " + name + ", expected json, binary or deflate");
+		}
+	}
+	
+	class Value {
+		private final long time;
+		private final String json;
+		private final String textures;
+		private final String jsonTag;
+		private final String texturesTag;
+		
+		Value(long time, String json, String textures, String jsonTag, String texturesTag) {
+			this.time = time;
+			this.json = json;
+			this.textures = textures;
+			this.jsonTag = jsonTag;
+			this.texturesTag = texturesTag;
+		}
+		
+		long getTime() {
+			return time;
+		}
+		
+		String getJson() {
+			return json;
+		}
+		
+		String getTextures() {
+			return textures;
+		}
+		
+		//Null for values stored before the tags were.
+		String getJsonTag() {
+			return jsonTag;
+		}
+		
+		String getTexturesTag() {
+			return texturesTag;
+		}
+	}
+	
+	class Framed implements ValueCodec {
+		private static final byte PLAIN = 1;
+		private static final byte DEFLATED = 2;
+		private static final int HEADER = 1 + Long.BYTES;
+		private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+		private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+		private final boolean compress;
+		
+		Framed(boolean compress) {
+			this.compress = compress;
+		}
+		
+		//The tags go last, so values written before them (and readers from before them) still work.
+		@Override
+		public byte[] encode(long time, String json, String textures, String jsonTag, String texturesTag) {
+			byte[] jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+			byte[] texturesBytes = bytes(textures);
+			byte[] jsonTagBytes = bytes(jsonTag);
+			byte[] texturesTagBytes = bytes(texturesTag);
+			int payloadLength = Integer.BYTES * 4 + jsonBytes.length + length(texturesBytes) + length(jsonTagBytes) + length(texturesTagBytes);
+			//Uncompressed values are written straight into the frame.
+			ByteBuffer payload = ByteBuffer.allocate(compress ? payloadLength : HEADER + payloadLength);
+			if (!compress) {
+				payload.put(PLAIN).putLong(time);
+			}
+			payload.putInt(jsonBytes.length).put(jsonBytes);
+			put(payload, texturesBytes);
+			put(payload, jsonTagBytes);
+			put(payload, texturesTagBytes);
+			if (!compress) {
+				return payload.array();
+			}
+			byte[] body = deflate(payload.array());
+			return ByteBuffer.allocate(HEADER + body.length).put(DEFLATED).putLong(time).put(body).array();
+		}
+		
+		@Override
+		public Value decode(byte[] value) {
+			if (value.length < HEADER || (value[0] != PLAIN && value[0] != DEFLATED)) {
+				return new Value(-1, new String(value, StandardCharsets.UTF_8), null, null, null);
+			}
+			ByteBuffer frame = ByteBuffer.wrap(value);
+			boolean deflated = frame.get() == DEFLATED;
+			long time = frame.getLong();
+			ByteBuffer payload = deflated ? ByteBuffer.wrap(inflate(value, HEADER)) : frame;
+			String json = get(payload);
+			String textures = get(payload);
+			if (!payload.hasRemaining()) {
+				return new Value(time, json, textures, null, null);
+			}
+			return new Value(time, json, textures, get(payload), get(payload));
+		}
+		
+		private static byte[] bytes(String string) {
+			return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+		}
+		
+		private static int length(byte[] bytes) {
+			return bytes == null ? 0 : bytes.length;
+		}
+		
+		//Strings are written with their length first, -1 for null.
+		private static void put(ByteBuffer buffer, byte[] bytes) {
+			buffer.putInt(bytes == null ? -1 : bytes.length);
+			if (bytes != null) {
+				buffer.put(bytes);
+			}
+		}
+		
+		private static String get(ByteBuffer buffer) {
+			int length = buffer.getInt();
+			if (length < 0) {
+				return null;
+			}
+			String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+			return string;
+		}
+		
+		private static byte[] deflate(byte[] input) {
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setInput(input);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+			byte[] buffer = new byte[1024];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		}
+		
+		private static byte[] inflate(byte[] input, int offset) {
+			Inflater inflater = inflaters.get();
+			inflater.reset();
+			inflater.setInput(input, offset, input.length - offset);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 3);
+			byte[] buffer = new byte[1024];
+			try {
+				while (!inflater.finished()) {
+					int inflated = inflater.inflate(buffer);
+					if (inflated == 0 && inflater.needsInput()) {
+						throw new IllegalArgumentException("Truncated value");
+					}
+					out.write(buffer, 0, inflated);
+				}
+			} catch (DataFormatException e) {
+				throw new IllegalArgumentException(e);
+			}
+			return out.toByteArray();
+		}
+	}
+}
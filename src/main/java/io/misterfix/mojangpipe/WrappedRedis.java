@@ -1,44 +1,89 @@
 package io.misterfix.mojangpipe;
 
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WrappedRedis implements AutoCloseable {
-	private static final List<WrappedRedis> databases = new ArrayList<>(6);
-	private final RedisCommands<String, String> redis;
+	private static final List<WrappedRedis[]> databases = new ArrayList<>(6);
+	private static final AtomicInteger next = new AtomicInteger();
+	//Lettuce connections are thread-safe and pipeline commands from concurrent callers,
+	//so by default connections are shared. Exclusive mode is the old one-caller-per-connection behaviour.
+	private static boolean exclusive;
+	private final StatefulRedisConnection<String, String> connection;
+	//Only opened when values are stored through a ValueCodec.
+	private final StatefulRedisConnection<String, byte[]> binary;
 	private boolean busy;
 	
-	public WrappedRedis(RedisCommands<String, String> redis) {
-		this.redis = redis;
-		databases.add(this);
+	public WrappedRedis(StatefulRedisConnection<String, String> connection) {
+		this(connection, null);
 	}
 	
+	public WrappedRedis(StatefulRedisConnection<String, String> connection, StatefulRedisConnection<String, byte[]> binary) {
+		this.connection = connection;
+		this.binary = binary;
+	}
 	
+	static void init(RedisClient client, String uri, int connections, boolean exclusiveConnections) {
+		init(client, uri, connections, exclusiveConnections, false);
+	}
+	
+	static void init(RedisClient client, String uri, int connections, boolean exclusiveConnections, boolean binaryValues) {
+		exclusive = exclusiveConnections;
+		databases.clear();
+		for (int db = 0; db <= 5; db++) {
+			RedisURI dbUri = RedisURI.create(uri + "/" + db);
+			WrappedRedis[] pool = new WrappedRedis[Math.max(1, connections)];
+			for (int i = 0; i < pool.length; i++) {
+				pool[i] = new WrappedRedis(client.connect(dbUri), binaryValues ? client.connect(StringBytesCodec.INSTANCE, dbUri) : null);
+			}
+			databases.add(pool);
+		}
+	}
 	
 	public RedisCommands<String, String> get() {
-		return redis;
+		return connection.sync();
+	}
+	
+	public RedisAsyncCommands<String, String> async() {
+		return connection.async();
+	}
+	
+	public RedisAsyncCommands<String, byte[]> binaryAsync() {
+		return binary.async();
 	}
 	
 	public static WrappedRedis get(int db) {
-		WrappedRedis redis = databases.get(db);
-		synchronized (redis) {
-			if (redis.busy) {
-				try {
-					redis.wait();
-				} catch (InterruptedException e) {
-					throw new RuntimeException(e);
+		WrappedRedis[] pool = databases.get(db);
+		WrappedRedis redis = pool.length == 1 ? pool[0] : pool[Math.floorMod(next.getAndIncrement(), pool.length)];
+		if (exclusive) {
+			synchronized (redis) {
+				while (redis.busy) {
+					try {
+						redis.wait();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
 				}
+				redis.busy = true;
 			}
-			redis.busy = true;
 		}
 		return redis;
 	}
 	
 	@Override
-	public synchronized void close() {
-		busy = false;
-		notify();
+	public void close() {
+		if (exclusive) {
+			synchronized (this) {
+				busy = false;
+				notify();
+			}
+		}
 	}
 }